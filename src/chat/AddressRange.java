@@ -0,0 +1,187 @@
+package chat;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A range of consecutive IPv4 addresses packed into ints, from a first to a last address inclusive.
+ * Addresses are produced on demand rather than stored, so a range takes the same memory whatever
+ * its size. It can be walked in chunks, or streamed and split for parallel use.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class AddressRange {
+
+    // the smallest part a stream of addresses is split into
+    private static final int MIN_SPLIT_SIZE = 256;
+
+    private final int first;
+    private final long size;
+
+    /**
+     * Create a range of addresses.
+     *
+     * @param first the first address, packed
+     * @param size  the number of addresses, up to 2^32
+     */
+    public AddressRange(int first, long size) {
+        if (size < 0 || Integer.toUnsignedLong(first) + size > 1L << 32)
+            throw new IllegalArgumentException("Invalid address range: " + IPv4.format(first) + " + " + size);
+        this.first = first;
+        this.size = size;
+    }
+
+    /**
+     * Create the range of the host addresses of a subnet.
+     * The network and broadcast addresses are left out, except in /31 and /32 subnets
+     * which have no room for them.
+     *
+     * @param network   any address of the subnet, packed
+     * @param prefix    the length of the network prefix
+     * @return          the host addresses
+     */
+    public static AddressRange ofSubnet(int network, int prefix) {
+        if (prefix < 0 || prefix > 32)
+            throw new IllegalArgumentException("Invalid network prefix: " + prefix);
+        int mask = prefix == 0 ? 0 : -1 << (32 - prefix);
+        long size = 1L << (32 - prefix);
+        int base = network & mask;
+        if (prefix >= 31)
+            return new AddressRange(base, size);
+        return new AddressRange(base + 1, size - 2);
+    }
+
+    /**
+     * Get the first address of the range.
+     *
+     * @return  the packed address
+     */
+    public int getFirst() {
+        return this.first;
+    }
+
+    /**
+     * Get the number of addresses in the range.
+     *
+     * @return  the size of the range
+     */
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * Check whether an address is in the range.
+     *
+     * @param address   the packed address
+     * @return          true if the address is in the range
+     */
+    public boolean contains(int address) {
+        return Integer.toUnsignedLong(address - this.first) < this.size;
+    }
+
+    /**
+     * Walk the range in chunks of a given size; the last chunk may be smaller.
+     *
+     * @param chunkSize the number of addresses in a chunk
+     * @return          an iterator over the chunks, each a range of its own
+     */
+    public Iterator<AddressRange> chunks(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        return new Iterator<AddressRange>() {
+            private long offset = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.offset < size;
+            }
+
+            @Override
+            public AddressRange next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                long length = Math.min(chunkSize, size - this.offset);
+                AddressRange chunk = new AddressRange(first + (int) this.offset, length);
+                this.offset += length;
+                return chunk;
+            }
+        };
+    }
+
+    /**
+     * Stream the addresses of the range.
+     *
+     * @return  a sequential stream, which may be turned parallel
+     */
+    public IntStream stream() {
+        return StreamSupport.intStream(new Addresses(0, this.size), false);
+    }
+
+    @Override
+    public String toString() {
+        if (this.size == 0)
+            return "[]";
+        return "[" + IPv4.format(this.first) + " - " + IPv4.format(this.first + (int) (this.size - 1)) + "]";
+    }
+
+    /**
+     * The addresses at offsets from the start of the range, split in halves for parallel use.
+     */
+    private class Addresses implements Spliterator.OfInt {
+
+        private long offset;
+        private final long end;
+
+        /**
+         * Cover the addresses between two offsets.
+         *
+         * @param offset    the offset of the first address
+         * @param end       the offset past the last address
+         */
+        Addresses(long offset, long end) {
+            this.offset = offset;
+            this.end = end;
+        }
+
+        @Override
+        public OfInt trySplit() {
+            long middle = (this.offset + this.end) >>> 1;
+            if (middle - this.offset < MIN_SPLIT_SIZE)
+                return null;
+            Addresses prefix = new Addresses(this.offset, middle);
+            this.offset = middle;
+            return prefix;
+        }
+
+        @Override
+        public boolean tryAdvance(IntConsumer action) {
+            if (this.offset >= this.end)
+                return false;
+            action.accept(first + (int) this.offset++);
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(IntConsumer action) {
+            long end = this.end;
+            for (long i = this.offset; i < end; i++)
+                action.accept(first + (int) i);
+            this.offset = end;
+        }
+
+        @Override
+        public long estimateSize() {
+            return this.end - this.offset;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL | DISTINCT;
+        }
+    }
+}
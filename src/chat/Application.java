@@ -3,10 +3,7 @@ package chat;
 import org.apache.commons.net.util.SubnetUtils;
 
 import java.net.*;
-import java.util.List;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * This class represent the running application.
@@ -53,6 +50,8 @@ public class Application {
                 .findAny()
                 .orElse(null);
         this.subnet = new SubnetUtils(localhostAddress + "/" + this.subnetMask);
+        PeerManager.getInstance().setLocalSubnet(
+                IPv4.pack(this.subnet.getInfo().getNetworkAddress()), this.subnetMask);
     }
 
     /**
@@ -92,13 +91,12 @@ public class Application {
     }
 
     /**
-     * Get all addresses in range of the current subnet, except self.
+     * Get the range of the host addresses in the current subnet.
+     * The addresses are produced lazily, so this is cheap for any subnet size.
      *
-     * @return  the list of all address range
+     * @return  the address range, which includes this host
      */
-    public List<String> getAllAdresses() {
-        return Stream.of(this.subnet.getInfo().getAllAddresses())
-                .filter(i -> !i.equals(this.localhost.getHostAddress()))
-                .collect(Collectors.toList());
+    public AddressRange getAddressRange() {
+        return AddressRange.ofSubnet(IPv4.pack(getIP()), this.subnetMask);
     }
 }
@@ -0,0 +1,160 @@
+package chat;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+/**
+ * The cipher suites that can be used to encrypt file transfers.
+ * The identifier of a suite is sent along with the file so that both sides agree on the algorithm.
+ * All suites derive their key from the one shared secret key.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public enum CipherSuite {
+
+    // the original suite, the only one understood by peers from before the cipher suites
+    DESEDE_CBC(1, "DESede", "DESede/CBC/PKCS5Padding", 8, false) {
+        @Override
+        AlgorithmParameterSpec getParameters(byte[] iv) {
+            return new IvParameterSpec(iv);
+        }
+
+        @Override
+        SecretKey deriveKey(SecretKey secret) {
+            if (secret.getAlgorithm().equals(getAlgorithm()))
+                return secret;
+            return new SecretKeySpec(Arrays.copyOf(secret.getEncoded(), 24), getAlgorithm());
+        }
+    },
+
+    // authenticated encryption, runs in hardware on CPUs with AES instructions
+    AES_GCM(2, "AES", "AES/GCM/NoPadding", 12, true) {
+        private static final int TAG_LENGTH = 128;
+
+        @Override
+        AlgorithmParameterSpec getParameters(byte[] iv) {
+            return new GCMParameterSpec(TAG_LENGTH, iv);
+        }
+
+        @Override
+        SecretKey deriveKey(SecretKey secret) throws GeneralSecurityException {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(secret.getEncoded());
+            return new SecretKeySpec(digest, 0, 16, getAlgorithm());
+        }
+    };
+
+    // identifier used when the contents are not encrypted at all
+    public static final byte NONE = 0;
+
+    private final byte id;
+    private final String algorithm;
+    private final String transformation;
+    private final int ivLength;
+    private final boolean authenticated;
+
+    CipherSuite(int id, String algorithm, String transformation, int ivLength, boolean authenticated) {
+        this.id = (byte) id;
+        this.algorithm = algorithm;
+        this.transformation = transformation;
+        this.ivLength = ivLength;
+        this.authenticated = authenticated;
+    }
+
+    /**
+     * Get the identifier of this suite on the wire.
+     *
+     * @return  the suite identifier
+     */
+    public byte getId() {
+        return this.id;
+    }
+
+    /**
+     * Get the name of the key algorithm.
+     *
+     * @return  the key algorithm
+     */
+    public String getAlgorithm() {
+        return this.algorithm;
+    }
+
+    /**
+     * Get the full cipher transformation i.e. algorithm/mode/padding.
+     *
+     * @return  the transformation
+     */
+    public String getTransformation() {
+        return this.transformation;
+    }
+
+    /**
+     * Get the length of the initialization vector of this suite.
+     *
+     * @return  the IV length in bytes
+     */
+    public int getIvLength() {
+        return this.ivLength;
+    }
+
+    /**
+     * Check whether this suite authenticates what it encrypts, along with additional data.
+     * Tampering with data encrypted by a suite that does not is not detected.
+     *
+     * @return  true if this suite is an authenticated encryption
+     */
+    public boolean isAuthenticated() {
+        return this.authenticated;
+    }
+
+    /**
+     * Build the cipher parameters for a given initialization vector.
+     *
+     * @param iv    the initialization vector
+     * @return      the parameter spec
+     */
+    abstract AlgorithmParameterSpec getParameters(byte[] iv);
+
+    /**
+     * Derive the key of this suite from the shared secret key.
+     *
+     * @param secret                    the shared secret key
+     * @return                          the key to use with this suite
+     * @throws GeneralSecurityException if the key cannot be derived
+     */
+    abstract SecretKey deriveKey(SecretKey secret) throws GeneralSecurityException;
+
+    /**
+     * Find a suite given its identifier.
+     *
+     * @param id            the suite identifier
+     * @return              the matching suite
+     * @throws IOException  if the identifier is unknown
+     */
+    public static CipherSuite fromId(byte id) throws IOException {
+        for (CipherSuite suite : values())
+            if (suite.id == id)
+                return suite;
+        throw new IOException("Unsupported cipher suite: " + id);
+    }
+
+    /**
+     * Find a suite given its name, ignoring case and dashes e.g. "aes-gcm".
+     *
+     * @param name  the suite name
+     * @return      the matching suite, or null if there is none
+     */
+    public static CipherSuite fromName(String name) {
+        for (CipherSuite suite : values())
+            if (suite.name().equalsIgnoreCase(name.replace('-', '_')))
+                return suite;
+        return null;
+    }
+}
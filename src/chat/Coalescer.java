@@ -0,0 +1,284 @@
+package chat;
+
+import protocol.MessageCodec;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * This class packs the small frames sent to the same peer into a single datagram.
+ * A frame sent to a peer that nothing was sent to lately goes out right away, so a lone message
+ * is not delayed; a frame that follows closely opens a batch, which collects the frames sent to
+ * that peer in the next fraction of a millisecond, up to the size of a datagram that fits in an
+ * Ethernet frame.
+ * A batch of several frames goes out in a {@link MessageCodec#BATCH} envelope whose body is the
+ * frames one after the other, each delimited by its own header; a batch of one frame goes out
+ * as it is. Frames too large to be batched are sent right away, after the batch of their peer
+ * so that the order is kept. The batches are sent by a thread of their own, which sleeps
+ * while there is nothing to send.
+ * A peer is only tracked while frames are sent to it in quick succession: its batch is dropped
+ * once it stays empty for the delay of a batch, and its buffer is only allocated when frames
+ * are actually packed together, so greeting a whole subnet leaves nothing behind.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class Coalescer {
+
+    private static final Logger LOGGER = Logging.setup(Logger.getLogger(Coalescer.class.getName()));
+
+    // the largest datagram sent, below the 1472 bytes of UDP payload in an Ethernet frame
+    public static final int MAX_DATAGRAM_SIZE = 1400;
+
+    // how long a batch waits for more frames, in nanoseconds
+    private static final long FLUSH_DELAY = TimeUnit.MICROSECONDS.toNanos(200);
+
+    /**
+     * Where the datagrams go out.
+     */
+    public interface Transport {
+        void send(ByteBuffer datagram, InetSocketAddress dst);
+    }
+
+    private final Transport transport;
+
+    // the batch of each peer, by key
+    private final Map<Long, Batch> batches = new ConcurrentHashMap<>();
+
+    // the batches waiting to be sent, in the order they were opened
+    private final BlockingQueue<Batch> scheduled = new LinkedBlockingQueue<>();
+
+    /**
+     * Create a coalescer and start the thread sending its batches.
+     *
+     * @param transport where the datagrams go out
+     */
+    public Coalescer(Transport transport) {
+        this.transport = transport;
+        Thread flusher = new Thread(this::run, "udp-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Send a frame to a peer, together with the other frames sent to it shortly.
+     *
+     * @param dst   the destination peer
+     * @param frame the encoded frame, from its position to its limit
+     */
+    public void send(Peer dst, ByteBuffer frame) {
+        // retry if the batch was dropped between getting it and adding to it
+        while (!this.batches.computeIfAbsent(dst.getKey(), key -> new Batch(dst)).add(frame))
+            ;
+    }
+
+    /**
+     * Send every open batch now, e.g. before exiting.
+     */
+    public void flush() {
+        for (Batch batch : this.batches.values())
+            batch.flush();
+    }
+
+    /**
+     * Drop the batch of a peer that left, without sending it.
+     *
+     * @param peer  the peer that left
+     */
+    public void forget(Peer peer) {
+        Batch batch = this.batches.remove(peer.getKey());
+        if (batch != null)
+            batch.drop();
+    }
+
+    /**
+     * Unpack a batch into its frames.
+     * The frames point into the datagram, so they must be used before it is reused.
+     *
+     * @param packet    the received datagram, a batch
+     * @return          the frames, up to the first one that is truncated
+     */
+    public static List<ByteBuffer> unpack(ByteBuffer packet) {
+        if (MessageCodec.opcodeOf(packet) != MessageCodec.BATCH)
+            return Collections.emptyList();
+        ByteBuffer body = packet.duplicate();
+        body.limit(packet.position() + MessageCodec.lengthOf(packet));
+        body.position(packet.position() + MessageCodec.HEADER_LENGTH);
+
+        List<ByteBuffer> frames = new ArrayList<>();
+        int length;
+        while ((length = MessageCodec.lengthOf(body)) > 0) {
+            ByteBuffer frame = body.slice();
+            frame.limit(length);
+            frames.add(frame);
+            body.position(body.position() + length);
+        }
+        return frames;
+    }
+
+    /**
+     * Send the batches as their delay runs out.
+     */
+    private void run() {
+        while (true) {
+            try {
+                Batch batch = this.scheduled.take();
+                long wait;
+                while ((wait = batch.deadline - System.nanoTime()) > 0)
+                    LockSupport.parkNanos(wait);
+                batch.expire();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                LOGGER.severe("Unable to send a batch: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The frames waiting to be sent to a peer.
+     * A batch is scheduled from the first frame sent to the peer, and dropped when its deadline
+     * comes with nothing sent to the peer since the previous one.
+     */
+    private class Batch {
+
+        private final Peer peer;
+
+        // the frames after room for the header of the envelope, allocated when first needed
+        private ByteBuffer buffer;
+        private int count;
+
+        // whether the batch waits for the flusher, until when, and whether it was dropped
+        private boolean waiting;
+        private long deadline;
+        private boolean dropped;
+
+        // when the last datagram went out to the peer
+        private long lastSent;
+
+        Batch(Peer peer) {
+            this.peer = peer;
+            this.lastSent = System.nanoTime() - FLUSH_DELAY;
+        }
+
+        /**
+         * Add a frame to the batch, sending the batch first if the frame does not fit.
+         *
+         * @param frame the encoded frame
+         * @return      false if the batch was dropped and the frame not sent
+         */
+        synchronized boolean add(ByteBuffer frame) {
+            if (this.dropped)
+                return false;
+
+            long now = System.nanoTime();
+            if (!this.waiting)
+                schedule(now);
+            if (this.count == 0 && now - this.lastSent >= FLUSH_DELAY) {
+                // the first frame of a burst, or a lone one
+                send(frame, now);
+                return true;
+            }
+            if (this.buffer == null) {
+                this.buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+                this.buffer.position(MessageCodec.HEADER_LENGTH);
+            }
+            if (frame.remaining() > this.buffer.remaining()) {
+                flush();
+                if (frame.remaining() > this.buffer.remaining()) {
+                    // too large for any batch
+                    send(frame, now);
+                    return true;
+                }
+            }
+            this.count++;
+            this.buffer.put(frame);
+            return true;
+        }
+
+        /**
+         * Send the batch as its delay ran out, or drop it if nothing was sent to the peer lately.
+         */
+        synchronized void expire() {
+            this.waiting = false;
+            if (this.dropped)
+                return;
+            long now = System.nanoTime();
+            if (this.count > 0) {
+                flush();
+                schedule(now);
+            } else if (now - this.lastSent < FLUSH_DELAY) {
+                schedule(this.lastSent);
+            } else {
+                this.dropped = true;
+                batches.remove(this.peer.getKey(), this);
+            }
+        }
+
+        /**
+         * Drop the batch and the frames it holds.
+         */
+        synchronized void drop() {
+            this.dropped = true;
+            this.count = 0;
+        }
+
+        /**
+         * Send the frames of the batch, if any.
+         * A batch flushed early stays scheduled, and the frames added in the meantime are sent
+         * at its deadline.
+         */
+        synchronized void flush() {
+            if (this.count == 0)
+                return;
+
+            ByteBuffer datagram = this.buffer.duplicate();
+            datagram.flip();
+            if (this.count == 1) {
+                datagram.position(MessageCodec.HEADER_LENGTH);
+            } else {
+                datagram.limit(MessageCodec.HEADER_LENGTH);
+                MessageCodec.putHeader(MessageCodec.BATCH, this.buffer.position() - MessageCodec.HEADER_LENGTH, datagram);
+                datagram.limit(this.buffer.position()).position(0);
+            }
+            transport.send(datagram, this.peer.getSocketAddress());
+            this.lastSent = System.nanoTime();
+
+            this.count = 0;
+            this.buffer.clear().position(MessageCodec.HEADER_LENGTH);
+        }
+
+        /**
+         * Send a frame on its own.
+         *
+         * @param frame the encoded frame
+         * @param now   the current time, in nanoseconds
+         */
+        private void send(ByteBuffer frame, long now) {
+            transport.send(frame, this.peer.getSocketAddress());
+            this.lastSent = now;
+        }
+
+        /**
+         * Have the flusher look at the batch once the delay of a batch passed.
+         *
+         * @param from  the time to count the delay from, in nanoseconds
+         */
+        private void schedule(long from) {
+            this.waiting = true;
+            this.deadline = from + FLUSH_DELAY;
+            scheduled.add(this);
+        }
+    }
+}
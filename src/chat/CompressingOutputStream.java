@@ -0,0 +1,109 @@
+package chat;
+
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * An output stream that compresses everything written to it in fixed-size chunks.
+ * Each chunk is written as a frame of [original length][stored length][data]. A chunk that
+ * does not shrink is stored as it is, which the receiver tells by the two lengths being equal.
+ *
+ * @see DecompressingInputStream
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class CompressingOutputStream extends FilterOutputStream {
+
+    private final DataOutputStream out;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] chunk = new byte[Compression.CHUNK_SIZE];
+    private final byte[] compressed = new byte[Compression.CHUNK_SIZE];
+    private int count;
+
+    /**
+     * Create a compressing stream on top of another output stream.
+     *
+     * @param out   the stream to write the compressed frames to
+     */
+    public CompressingOutputStream(OutputStream out) {
+        super(out);
+        this.out = new DataOutputStream(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == chunk.length)
+            compressChunk();
+        chunk[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == chunk.length)
+                compressChunk();
+            int n = Math.min(len, chunk.length - count);
+            System.arraycopy(b, off, chunk, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Compress whatever is buffered as a final frame and flush the underlying stream.
+     *
+     * @throws IOException  if an error occurs while writing
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0)
+            compressChunk();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Release the native memory of the compressor, leaving the underlying stream open.
+     * The stream cannot be written to anymore.
+     */
+    public void end() {
+        deflater.end();
+    }
+
+    /**
+     * Compress the buffered chunk and write it out as a single frame.
+     *
+     * @throws IOException  if an error occurs while writing
+     */
+    private void compressChunk() throws IOException {
+        deflater.reset();
+        deflater.setInput(chunk, 0, count);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished() && size < compressed.length)
+            size += deflater.deflate(compressed, size, compressed.length - size);
+
+        out.writeInt(count);
+        if (deflater.finished() && size < count) {
+            out.writeInt(size);
+            out.write(compressed, 0, size);
+        } else {
+            out.writeInt(count);
+            out.write(chunk, 0, count);
+        }
+        count = 0;
+    }
+}
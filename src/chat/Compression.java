@@ -0,0 +1,91 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * This class provides utility functions related to compressing file transfers.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class Compression {
+
+    // identifiers of the compression of a transfer on the wire
+    public static final byte NONE = 0;
+    public static final byte DEFLATE = 1;
+
+    // size of the plain chunks that are compressed independently when streaming
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    // how much of a file is compressed to find out whether the rest is worth it
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final double MIN_SAVING = 0.1;
+
+    // formats that are compressed already
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "7z", "avi", "bz2", "docx", "flac", "gif", "gz", "jar", "jpeg", "jpg", "mkv", "mov", "mp3", "mp4",
+            "ogg", "png", "pptx", "rar", "tgz", "webm", "webp", "xlsx", "xz", "zip", "zst"));
+
+    private static volatile boolean COMPRESSION = false;
+
+    /**
+     * Check if compression is enabled or not.
+     *
+     * @return  true if compression is enabled
+     */
+    public static boolean isCompressionEnabled() {
+        return COMPRESSION;
+    }
+
+    /**
+     * Toggle the compression of outgoing files.
+     */
+    public static void toggleCompression() {
+        COMPRESSION = !COMPRESSION;
+    }
+
+    /**
+     * Decide how to compress a file before sending it.
+     * Files in a known compressed format are left as they are, otherwise the start of the file is
+     * compressed as a sample and the file is only compressed if the sample shrinks noticeably.
+     *
+     * @param name          the file name
+     * @param file          the file contents
+     * @return              the compression to use
+     * @throws IOException  if the file cannot be read
+     */
+    public static byte choose(String name, FileChannel file) throws IOException {
+        if (!COMPRESSION)
+            return NONE;
+
+        String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+        if (name.contains(".") && COMPRESSED_EXTENSIONS.contains(extension))
+            return NONE;
+
+        ByteBuffer sample = ByteBuffer.allocate((int) Math.min(SAMPLE_SIZE, file.size()));
+        while (sample.hasRemaining() && file.read(sample, sample.position()) > 0)
+            ;
+        if (sample.position() == 0)
+            return NONE;
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample.array(), 0, sample.position());
+            deflater.finish();
+            byte[] output = new byte[sample.position()];
+            int compressed = 0;
+            while (!deflater.finished() && compressed < output.length)
+                compressed += deflater.deflate(output, compressed, output.length - compressed);
+            boolean worthIt = deflater.finished() && compressed < sample.position() * (1 - MIN_SAVING);
+            return worthIt ? DEFLATE : NONE;
+        } finally {
+            deflater.end();
+        }
+    }
+}
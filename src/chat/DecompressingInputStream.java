@@ -0,0 +1,135 @@
+package chat;
+
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * An input stream that decompresses the frames written by {@link CompressingOutputStream}.
+ * Frames are read one at a time and never beyond what the caller asks for,
+ * so the underlying stream is left positioned right after the last consumed frame.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class DecompressingInputStream extends FilterInputStream {
+
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater();
+    private final byte[] compressed = new byte[Compression.CHUNK_SIZE];
+    private final byte[] chunk = new byte[Compression.CHUNK_SIZE];
+    private int position;
+    private int limit;
+
+    /**
+     * Create a decompressing stream on top of another input stream.
+     *
+     * @param in    the stream to read the compressed frames from
+     */
+    public DecompressingInputStream(InputStream in) {
+        super(in);
+        this.in = new DataInputStream(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !nextChunk())
+            return -1;
+        return chunk[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (position == limit && !nextChunk())
+            return -1;
+
+        int n = Math.min(len, limit - position);
+        System.arraycopy(chunk, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && (position < limit || nextChunk())) {
+            int step = (int) Math.min(n - skipped, limit - position);
+            position += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Release the native memory of the decompressor, leaving the underlying stream open.
+     * The stream cannot be read from anymore.
+     */
+    public void end() {
+        inflater.end();
+    }
+
+    /**
+     * Read and decompress the next frame.
+     *
+     * @return              false if the underlying stream ended cleanly before a new frame
+     * @throws IOException  if a frame is truncated or malformed
+     */
+    private boolean nextChunk() throws IOException {
+        int first = in.read();
+        if (first == -1)
+            return false;
+        int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        int stored = in.readInt();
+        if (length < 0 || length > chunk.length || stored < 0 || stored > length)
+            throw new IOException("Invalid compressed frame size: " + stored + "/" + length);
+
+        if (stored == length) {
+            in.readFully(chunk, 0, length);
+        } else {
+            in.readFully(compressed, 0, stored);
+            try {
+                inflater.reset();
+                inflater.setInput(compressed, 0, stored);
+                int size = 0;
+                while (size < length && !inflater.finished()) {
+                    int n = inflater.inflate(chunk, size, length - size);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    size += n;
+                }
+                if (size != length || !inflater.finished())
+                    throw new IOException("Compressed frame does not match its size");
+            } catch (DataFormatException e) {
+                throw new IOException("Unable to decompress data: " + e.getMessage(), e);
+            }
+        }
+        position = 0;
+        limit = length;
+        // an empty frame carries nothing, move on to the next one
+        return limit > 0 || nextChunk();
+    }
+}
@@ -0,0 +1,131 @@
+package chat;
+
+import javax.crypto.Cipher;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that decrypts the frames written by {@link EncryptingOutputStream}.
+ * Frames are read and decrypted one at a time and never beyond what the caller asks for,
+ * so the underlying stream is left positioned right after the last consumed frame.
+ * The stream ends after the frame flagged as the last one; if the underlying stream ends before
+ * it, or a frame is out of place in the stream, reading fails instead.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class DecryptingInputStream extends FilterInputStream {
+
+    // a frame never holds more than a chunk plus the cipher's padding or tag
+    private static final int MAX_FRAME_SIZE = Security.CHUNK_SIZE + 1024;
+
+    private final DataInputStream in;
+    private final CipherSuite suite;
+    private final byte[] iv;
+    private byte[] streamId;
+    private long sequence;
+    private boolean finished;
+    private byte[] cipherText = new byte[0];
+    private byte[] chunk = new byte[0];
+    private int position;
+    private int limit;
+
+    /**
+     * Create a decrypting stream on top of another input stream.
+     *
+     * @param in    the stream to read the encrypted frames from
+     * @param suite the cipher suite the frames were encrypted with
+     */
+    public DecryptingInputStream(InputStream in, CipherSuite suite) {
+        super(in);
+        this.in = new DataInputStream(in);
+        this.suite = suite;
+        this.iv = new byte[suite.getIvLength()];
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !nextChunk())
+            return -1;
+        return chunk[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (position == limit && !nextChunk())
+            return -1;
+
+        int n = Math.min(len, limit - position);
+        System.arraycopy(chunk, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && (position < limit || nextChunk())) {
+            int step = (int) Math.min(n - skipped, limit - position);
+            position += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Read and decrypt the next frame.
+     *
+     * @return              false if the last frame has been read already
+     * @throws IOException  if the stream ends before its last frame, or a frame cannot be decrypted
+     */
+    private boolean nextChunk() throws IOException {
+        if (finished)
+            return false;
+        int first = in.read();
+        if (first == -1)
+            throw new EOFException("Encrypted stream ended before its last frame");
+        iv[0] = (byte) first;
+        in.readFully(iv, 1, iv.length - 1);
+        if (streamId == null)
+            streamId = iv.clone();
+
+        int size = in.readInt();
+        boolean last = (size & EncryptingOutputStream.LAST_FRAME) != 0;
+        size &= ~EncryptingOutputStream.LAST_FRAME;
+        if (size > MAX_FRAME_SIZE)
+            throw new IOException("Invalid encrypted frame size: " + size);
+        if (cipherText.length < size)
+            cipherText = new byte[size];
+        in.readFully(cipherText, 0, size);
+
+        try {
+            Cipher cipher = Security.getCipher(suite, Cipher.DECRYPT_MODE, iv);
+            EncryptingOutputStream.authenticate(cipher, suite, streamId, sequence++, last);
+            int outputSize = cipher.getOutputSize(size);
+            if (chunk.length < outputSize)
+                chunk = new byte[outputSize];
+            limit = cipher.doFinal(cipherText, 0, size, chunk, 0);
+            position = 0;
+        } catch (Exception e) {
+            throw new IOException("Unable to decrypt data: " + e.getMessage(), e);
+        }
+        finished = last;
+        // an empty frame carries nothing, move on to the next one
+        return limit > 0 || nextChunk();
+    }
+}
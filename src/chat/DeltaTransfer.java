@@ -0,0 +1,460 @@
+package chat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * The rsync algorithm for sending only what changed in a file the receiver already has a copy of.
+ * The receiver cuts its copy into blocks and sends a weak rolling checksum and a strong checksum
+ * of every block. The sender slides a window over its file, looking the rolling checksum up at every
+ * byte offset, and sends a reference wherever a block matches and the bytes themselves elsewhere.
+ *
+ * @see "https://rsync.samba.org/tech_report/"
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class DeltaTransfer {
+
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024;
+    private static final int STRONG_LENGTH = 16;
+
+    // the sender flushes literal bytes once this many are pending
+    private static final int MAX_LITERAL = 64 * 1024;
+
+    // how many blocks of a received signature there is room for at first
+    private static final int INITIAL_BLOCK_COUNT = 1024;
+
+    // operations of the delta stream
+    private static final byte OP_END = 0;
+    private static final byte OP_LITERAL = 1;
+    private static final byte OP_BLOCK = 2;
+
+    /**
+     * The checksums of the blocks of the receiver's copy of a file.
+     */
+    public static class Signature {
+
+        private final int blockSize;
+        private final long size;
+        private final int[] weak;
+        private final byte[][] strong;
+
+        // block indices by weak checksum, built on demand by the sender
+        private Map<Integer, List<Integer>> index;
+
+        private Signature(int blockSize, long size, int[] weak, byte[][] strong) {
+            this.blockSize = blockSize;
+            this.size = size;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        /**
+         * Get the length of a block.
+         *
+         * @param block the block index
+         * @return      the block length, the last block may be shorter than the others
+         */
+        int getBlockLength(int block) {
+            return (int) Math.min(this.blockSize, this.size - (long) block * this.blockSize);
+        }
+
+        /**
+         * Get the number of blocks.
+         *
+         * @return  the number of blocks
+         */
+        int getBlockCount() {
+            return this.weak.length;
+        }
+
+        /**
+         * Find the blocks with a given weak checksum.
+         *
+         * @param checksum  the weak checksum
+         * @return          the candidate block indices, or null if there is none
+         */
+        List<Integer> find(int checksum) {
+            if (this.index == null) {
+                this.index = new HashMap<>();
+                for (int i = 0; i < this.weak.length; i++)
+                    this.index.computeIfAbsent(this.weak[i], k -> new ArrayList<>(1)).add(i);
+            }
+            return this.index.get(checksum);
+        }
+    }
+
+    /**
+     * Pick a block size for a file, roughly the square root of its size.
+     *
+     * @param size  the file size
+     * @return      the block size
+     */
+    static int getBlockSize(long size) {
+        int blockSize = (int) Math.sqrt(size) & ~7;
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+    }
+
+    /**
+     * Compute the signature of the receiver's copy of a file.
+     *
+     * @param file          the receiver's copy, or null if there is none
+     * @return              the signature, without any block if there is no copy
+     * @throws IOException  if the file cannot be read
+     */
+    static Signature computeSignature(FileChannel file) throws IOException {
+        long size = file == null ? 0 : file.size();
+        int blockSize = getBlockSize(size);
+        int count = (int) ((size + blockSize - 1) / blockSize);
+        int[] weak = new int[count];
+        byte[][] strong = new byte[count][];
+
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+        for (int i = 0; i < count; i++) {
+            buffer.clear();
+            long position = (long) i * blockSize;
+            while (buffer.hasRemaining() && file.read(buffer, position + buffer.position()) > 0)
+                ;
+            weak[i] = weakChecksum(buffer.array(), 0, buffer.position());
+            digest.update(buffer.array(), 0, buffer.position());
+            strong[i] = digest.digest();
+        }
+        return new Signature(blockSize, size, weak, strong);
+    }
+
+    /**
+     * Send a signature over.
+     *
+     * @param signature     the signature
+     * @param out           the stream to write to
+     * @throws IOException  if an error occurs while writing
+     */
+    static void writeSignature(Signature signature, DataOutputStream out) throws IOException {
+        out.writeInt(signature.blockSize);
+        out.writeLong(signature.size);
+        out.writeInt(signature.getBlockCount());
+        for (int i = 0; i < signature.getBlockCount(); i++) {
+            out.writeInt(signature.weak[i]);
+            out.write(signature.strong[i]);
+        }
+        out.flush();
+    }
+
+    /**
+     * Read a signature sent over by the receiver.
+     * The block count comes from the peer, so the blocks are stored as they arrive instead of
+     * allocating room for all of them up front.
+     *
+     * @param in            the stream to read from
+     * @return              the signature
+     * @throws IOException  if the signature cannot be read or is malformed
+     */
+    static Signature readSignature(DataInputStream in) throws IOException {
+        int blockSize = in.readInt();
+        long size = in.readLong();
+        int count = in.readInt();
+        if (size < 0 || blockSize != getBlockSize(size) || count != (size + blockSize - 1) / blockSize)
+            throw new IOException("Malformed file signature");
+
+        int[] weak = new int[Math.min(count, INITIAL_BLOCK_COUNT)];
+        byte[][] strong = new byte[weak.length][];
+        for (int i = 0; i < count; i++) {
+            if (i == weak.length) {
+                weak = Arrays.copyOf(weak, (int) Math.min(count, 2L * i));
+                strong = Arrays.copyOf(strong, weak.length);
+            }
+            weak[i] = in.readInt();
+            strong[i] = new byte[STRONG_LENGTH];
+            in.readFully(strong[i]);
+        }
+        return new Signature(blockSize, size, weak, strong);
+    }
+
+    /**
+     * Compute the delta of a file against the receiver's signature and send it over.
+     *
+     * @param file          the sender's file
+     * @param signature     the signature of the receiver's copy
+     * @param out           the stream to write the delta to
+     * @return              the number of literal bytes sent, the rest was sent as block references
+     * @throws IOException  if an error occurs while reading or sending
+     */
+    static long writeDelta(FileChannel file, Signature signature, DataOutputStream out) throws IOException {
+        Encoder encoder = new Encoder(file, signature, out);
+        encoder.run();
+        out.writeByte(OP_END);
+        out.flush();
+        return encoder.literalBytes;
+    }
+
+    /**
+     * Rebuild a file from the receiver's copy and a delta.
+     *
+     * @param in            the stream to read the delta from
+     * @param basis         the receiver's copy the block references point into, or null if there is none
+     * @param signature     the signature the delta was computed against
+     * @param out           the stream to write the rebuilt file to
+     * @return              the number of bytes written
+     * @throws IOException  if the delta is malformed or an error occurs while reading or writing
+     */
+    static long applyDelta(DataInputStream in, FileChannel basis, Signature signature, OutputStream out)
+            throws IOException {
+        byte[] buffer = new byte[Math.max(MAX_LITERAL, signature.blockSize)];
+        long written = 0;
+        byte op;
+        while ((op = in.readByte()) != OP_END) {
+            if (op == OP_LITERAL) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_LITERAL)
+                    throw new IOException("Malformed delta literal of " + length + " bytes");
+                in.readFully(buffer, 0, length);
+                out.write(buffer, 0, length);
+                written += length;
+            } else if (op == OP_BLOCK) {
+                int block = in.readInt();
+                if (basis == null || block < 0 || block >= signature.getBlockCount())
+                    throw new IOException("Malformed delta block reference " + block);
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, signature.getBlockLength(block));
+                long position = (long) block * signature.blockSize;
+                while (data.hasRemaining())
+                    if (basis.read(data, position + data.position()) == -1)
+                        throw new EOFException("The local copy changed during the transfer");
+                out.write(buffer, 0, data.position());
+                written += data.position();
+            } else {
+                throw new IOException("Unknown delta operation " + op);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Compute the weak checksum of a block, the rolling checksum of the rsync algorithm.
+     *
+     * @param data      the bytes
+     * @param offset    the start of the block
+     * @param length    the length of the block
+     * @return          the checksum
+     */
+    private static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * Create the digest used for the strong checksums.
+     *
+     * @return  the message digest
+     */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    /**
+     * Slides a window over the sender's file and writes the delta operations.
+     */
+    private static class Encoder {
+
+        private final FileChannel file;
+        private final Signature signature;
+        private final DataOutputStream out;
+        private final MessageDigest digest = newDigest();
+        private final int blockSize;
+
+        // the window is [start, start + blockSize) of the buffer and literals pending are [literal, start)
+        private final byte[] buffer;
+        private int start;
+        private int literal;
+        private int filled;
+        private long position;
+        private boolean eof;
+
+        // the rolling checksum of the window
+        private int a;
+        private int b;
+
+        private long literalBytes;
+
+        Encoder(FileChannel file, Signature signature, DataOutputStream out) {
+            this.file = file;
+            this.signature = signature;
+            this.out = out;
+            this.blockSize = signature.blockSize;
+            this.buffer = new byte[Math.max(4 * this.blockSize, 1024 * 1024)];
+        }
+
+        /**
+         * Encode the whole file.
+         *
+         * @throws IOException  if an error occurs while reading or sending
+         */
+        void run() throws IOException {
+            boolean rolling = false;
+            while (true) {
+                if (this.filled - this.start <= this.blockSize && !this.eof)
+                    fill();
+                int available = this.filled - this.start;
+                if (available < this.blockSize) {
+                    finish(available);
+                    return;
+                }
+
+                if (!rolling) {
+                    computeWindow();
+                    rolling = true;
+                }
+                int block = match(this.blockSize);
+                if (block >= 0) {
+                    flushLiteral();
+                    this.out.writeByte(OP_BLOCK);
+                    this.out.writeInt(block);
+                    this.start += this.blockSize;
+                    this.literal = this.start;
+                    rolling = false;
+                    continue;
+                }
+
+                if (available == this.blockSize) {
+                    // the window is at the end of the file, nothing left to roll in
+                    this.start++;
+                    rolling = false;
+                } else {
+                    roll();
+                }
+                if (this.start - this.literal >= MAX_LITERAL)
+                    flushLiteral();
+            }
+        }
+
+        /**
+         * Handle the last bytes of the file, which are shorter than a block.
+         *
+         * @param available     the number of bytes left
+         * @throws IOException  if an error occurs while sending
+         */
+        private void finish(int available) throws IOException {
+            // the last block of the receiver's copy may be as short as the tail
+            int last = this.signature.getBlockCount() - 1;
+            if (available > 0 && last >= 0 && this.signature.getBlockLength(last) == available) {
+                int checksum = weakChecksum(this.buffer, this.start, available);
+                List<Integer> candidates = this.signature.find(checksum);
+                if (candidates != null && candidates.contains(last) && strongMatches(last, available)) {
+                    flushLiteral();
+                    this.out.writeByte(OP_BLOCK);
+                    this.out.writeInt(last);
+                    this.start += available;
+                    this.literal = this.start;
+                    return;
+                }
+            }
+            this.start = this.filled;
+            flushLiteral();
+        }
+
+        /**
+         * Look the window up in the signature.
+         *
+         * @param length    the length of the window
+         * @return          the matching block index, or -1 if there is none
+         */
+        private int match(int length) {
+            List<Integer> candidates = this.signature.find((this.a & 0xFFFF) | (this.b << 16));
+            if (candidates == null)
+                return -1;
+            for (int block : candidates)
+                if (this.signature.getBlockLength(block) == length && strongMatches(block, length))
+                    return block;
+            return -1;
+        }
+
+        /**
+         * Compare the strong checksum of the window with the one of a block.
+         *
+         * @param block     the block index
+         * @param length    the length of the window
+         * @return          true if they are equal
+         */
+        private boolean strongMatches(int block, int length) {
+            this.digest.update(this.buffer, this.start, length);
+            return Arrays.equals(this.digest.digest(), this.signature.strong[block]);
+        }
+
+        /**
+         * Compute the rolling checksum of the window from scratch.
+         */
+        private void computeWindow() {
+            int checksum = weakChecksum(this.buffer, this.start, this.blockSize);
+            this.a = checksum & 0xFFFF;
+            this.b = checksum >>> 16;
+        }
+
+        /**
+         * Move the window one byte forward, updating the rolling checksum.
+         */
+        private void roll() {
+            int out = this.buffer[this.start] & 0xFF;
+            int in = this.buffer[this.start + this.blockSize] & 0xFF;
+            this.a = (this.a - out + in) & 0xFFFF;
+            this.b = (this.b - this.blockSize * out + this.a) & 0xFFFF;
+            this.start++;
+        }
+
+        /**
+         * Send the pending literal bytes.
+         *
+         * @throws IOException  if an error occurs while sending
+         */
+        private void flushLiteral() throws IOException {
+            while (this.literal < this.start) {
+                int length = Math.min(this.start - this.literal, MAX_LITERAL);
+                this.out.writeByte(OP_LITERAL);
+                this.out.writeInt(length);
+                this.out.write(this.buffer, this.literal, length);
+                this.literalBytes += length;
+                this.literal += length;
+            }
+        }
+
+        /**
+         * Read more of the file into the buffer, moving the pending bytes to its front first.
+         *
+         * @throws IOException  if an error occurs while reading or sending
+         */
+        private void fill() throws IOException {
+            if (this.literal > 0) {
+                System.arraycopy(this.buffer, this.literal, this.buffer, 0, this.filled - this.literal);
+                this.start -= this.literal;
+                this.filled -= this.literal;
+                this.literal = 0;
+            }
+
+            ByteBuffer data = ByteBuffer.wrap(this.buffer, this.filled, this.buffer.length - this.filled);
+            while (data.hasRemaining()) {
+                int bytesRead = this.file.read(data, this.position);
+                if (bytesRead == -1) {
+                    this.eof = true;
+                    break;
+                }
+                this.position += bytesRead;
+            }
+            this.filled = data.position();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package chat;
+
+import protocol.Message;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.logging.Logger;
+
+/**
+ * This class holds how the peers online in the network are greeted.
+ * A single greeting sent to the broadcast address of the subnet or to the multicast group
+ * of the application reaches every peer, while the unicast sweep of {@link DiscoveryScheduler}
+ * greets each address of the subnet in turn and is only used when the other modes are not available.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class Discovery {
+
+    private static final Logger LOGGER = Logging.setup(Logger.getLogger(Discovery.class.getName()));
+
+    // the multicast group joined by every instance of the application, administratively scoped
+    public static final String MULTICAST_GROUP = "239.255.27.11";
+
+    /**
+     * The ways of greeting the peers.
+     */
+    public enum Mode {
+        BROADCAST, MULTICAST, UNICAST;
+
+        /**
+         * Get a mode given its name, case-insensitive.
+         *
+         * @param name  the name of the mode
+         * @return      the mode, or null if there is no such mode
+         */
+        public static Mode fromName(String name) {
+            for (Mode mode : values()) {
+                if (mode.name().equalsIgnoreCase(name))
+                    return mode;
+            }
+            return null;
+        }
+    }
+
+    private static volatile Mode MODE = Mode.BROADCAST;
+
+    /**
+     * Get the current discovery mode.
+     *
+     * @return  the discovery mode
+     */
+    public static Mode getMode() {
+        return MODE;
+    }
+
+    /**
+     * Set the discovery mode.
+     *
+     * @param mode  the discovery mode
+     */
+    public static void setMode(Mode mode) {
+        MODE = mode;
+    }
+
+    /**
+     * Create a greeting, stamped with the time it is sent at and followed by the features of this
+     * instance, see {@link Features#advertisement()}.
+     * The peers echo the stamp in their {@link Message#HELLO_ACK}, which gives the round-trip time.
+     *
+     * @return  the greeting
+     */
+    public static Message hello() {
+        return new Message(Message.HELLO, System.nanoTime() + Message.DELIMITER + Features.advertisement());
+    }
+
+    /**
+     * Get the round-trip time of a greeting from its echoed stamp.
+     *
+     * @param stamp the stamp echoed by the peer
+     * @return      the round-trip time in microseconds, or -1 if the stamp is missing or invalid
+     */
+    public static int roundTripTime(String stamp) {
+        try {
+            long elapsed = (System.nanoTime() - Long.parseLong(stamp)) / 1000;
+            // anything slower than a minute is not an answer to a greeting of this run
+            return elapsed >= 0 && elapsed < 60_000_000 ? (int) elapsed : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Greet every peer in the network at once, by broadcast or multicast depending on the mode.
+     *
+     * @param hello the greeting
+     * @return      true if the greeting went out, false if the mode is unicast or sending failed
+     *              and the addresses have to be swept one by one instead
+     */
+    public static boolean announce(Message hello) {
+        try {
+            switch (MODE) {
+                case BROADCAST:
+                    String broadcast = Application.getInstance().getSubnet().getInfo().getBroadcastAddress();
+                    UDPMessageSender.getInstance().send(InetAddress.getByName(broadcast), Application.PORT, hello);
+                    return true;
+                case MULTICAST:
+                    UDPMessageSender.getInstance().send(
+                            InetAddress.getByName(MULTICAST_GROUP), Application.PORT, hello);
+                    return true;
+                default:
+                    return false;
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Unable to greet peers by " + MODE + ", falling back to unicast: " + e.getMessage());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package chat;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * This class looks for peers in the background, in rounds repeated periodically.
+ * Each round first greets the addresses that answered lately, then greets the whole subnet,
+ * either at once by broadcast or multicast, or by sweeping the addresses one by one.
+ * Every greeting is paced by a token bucket so that a sweep never floods the network,
+ * and addresses that never answer are greeted exponentially less often.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class DiscoveryScheduler {
+
+    private static final Logger LOGGER = Logging.setup(Logger.getLogger(DiscoveryScheduler.class.getName()));
+
+    // greetings per second, and how many can go out at once after an idle period
+    public static final int DEFAULT_RATE = 100;
+    private static final int BURST = 20;
+
+    // the delay between the end of a round and the start of the next one
+    private static final long PERIOD = 60;
+
+    // an address that never answers is greeted every 2^MAX_BACKOFF rounds at most
+    private static final int MAX_BACKOFF = 6;
+
+    // the misses are counted per block of addresses so that their memory is bounded
+    private static final int MAX_BLOCKS = 1 << 16;
+
+    // the number of addresses that answered lately to remember
+    private static final int MAX_RECENT = 1024;
+
+    private static final TokenBucket BUCKET = new TokenBucket(DEFAULT_RATE, BURST);
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "discovery");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // the addresses that answered lately, the most recent last
+    private static final Map<Integer, Boolean> RECENT = new LinkedHashMap<Integer, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+            return size() > MAX_RECENT;
+        }
+    };
+
+    // the unanswered greetings in a row of each block of addresses in the range
+    private static volatile AddressRange RANGE;
+    private static volatile byte[] MISSES;
+    private static int BLOCK_SHIFT;
+
+    private static int ROUND;
+    private static ScheduledFuture<?> TASK;
+
+    /**
+     * Start the rounds in the background, the first one right away.
+     */
+    public static synchronized void start() {
+        if (TASK != null)
+            return;
+
+        AddressRange range = Application.getInstance().getAddressRange();
+        int shift = 0;
+        while (range.size() >>> shift > MAX_BLOCKS)
+            shift++;
+        BLOCK_SHIFT = shift;
+        MISSES = new byte[(int) ((range.size() + (1L << shift) - 1) >>> shift)];
+        RANGE = range;
+        TASK = EXECUTOR.scheduleWithFixedDelay(DiscoveryScheduler::run, 0, PERIOD, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the rounds, interrupting the current one.
+     */
+    public static synchronized void stop() {
+        if (TASK != null)
+            TASK.cancel(true);
+        EXECUTOR.shutdownNow();
+    }
+
+    /**
+     * Set the number of greetings per second.
+     *
+     * @param rate  the number of greetings per second
+     */
+    public static void setRate(int rate) {
+        BUCKET.setRate(rate);
+    }
+
+    /**
+     * Record that an address answered, so it is greeted first in the next rounds
+     * and no longer backed off.
+     *
+     * @param address   the packed address
+     */
+    public static void seen(int address) {
+        synchronized (RECENT) {
+            RECENT.put(address, Boolean.TRUE);
+        }
+        AddressRange range = RANGE;
+        if (range != null && range.contains(address))
+            MISSES[(address - range.getFirst()) >>> BLOCK_SHIFT] = 0;
+    }
+
+    /**
+     * Greet peers first in the next rounds, e.g. the peers known in a previous run.
+     *
+     * @param peers the peers, the one to greet first at the head of the list
+     */
+    public static void prioritize(List<Peer> peers) {
+        synchronized (RECENT) {
+            for (int i = peers.size() - 1; i >= 0; i--)
+                RECENT.put(peers.get(i).getAddress(), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Run a round of discovery.
+     */
+    private static void run() {
+        try {
+            ROUND++;
+
+            // the addresses that answered before are the most likely to be back
+            Integer[] recent;
+            synchronized (RECENT) {
+                recent = RECENT.keySet().toArray(new Integer[0]);
+            }
+            for (int i = recent.length - 1; i >= 0; i--) {
+                if (!PeerManager.getInstance().contains(recent[i], Application.PORT))
+                    greet(recent[i]);
+            }
+
+            if (!Discovery.announce(Discovery.hello()))
+                sweep();
+        } catch (InterruptedException e) {
+            LOGGER.info("Discovery stopped");
+        } catch (Exception e) {
+            // an exception escaping would cancel the next rounds
+            LOGGER.severe("Error while discovering peers: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Greet every unknown address of the subnet that is not backed off in this round.
+     *
+     * @throws InterruptedException if interrupted while waiting to send
+     */
+    private static void sweep() throws InterruptedException {
+        AddressRange range = RANGE;
+        byte[] misses = MISSES;
+        int self = IPv4.pack(Application.getInstance().getIP());
+
+        Iterator<AddressRange> blocks = range.chunks(1 << BLOCK_SHIFT);
+        for (int block = 0; blocks.hasNext(); block++) {
+            AddressRange addresses = blocks.next();
+            int backoff = Math.min(misses[block], MAX_BACKOFF);
+            // skip the block unless this is one of its rounds, spreading the blocks over the rounds
+            if (((ROUND + block) & ((1 << backoff) - 1)) != 0)
+                continue;
+
+            boolean greeted = false;
+            PrimitiveIterator.OfInt iterator = addresses.stream().iterator();
+            while (iterator.hasNext()) {
+                int address = iterator.nextInt();
+                if (address != self && !PeerManager.getInstance().contains(address, Application.PORT)) {
+                    greet(address);
+                    greeted = true;
+                }
+            }
+
+            // the block missed once more, until one of its addresses answers
+            if (greeted && misses[block] < MAX_BACKOFF)
+                misses[block]++;
+        }
+    }
+
+    /**
+     * Greet an address once the token bucket allows it.
+     *
+     * @param address               the packed address
+     * @throws InterruptedException if interrupted while waiting to send
+     */
+    private static void greet(int address) throws InterruptedException {
+        BUCKET.acquire();
+        UDPMessageSender.getInstance().sendAlone(new Peer(address, Application.PORT), Discovery.hello());
+    }
+}
@@ -0,0 +1,147 @@
+package chat;
+
+import javax.crypto.Cipher;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An output stream that encrypts everything written to it in fixed-size chunks.
+ * Each chunk is encrypted on its own and written as a frame of [IV][cipher text length][cipher text],
+ * so the memory used stays bounded to a couple of chunk buffers regardless of the data size.
+ * The stream ends with a frame flagged as the last one, written by {@link #finish()}.
+ * <p>
+ * With an authenticated suite, each frame also authenticates the IV of the first frame of the
+ * stream, its own sequence number and whether it is the last one, after the STREAM construction.
+ * Frames that are reordered, dropped, replayed from another stream, or a stream cut short after
+ * any frame are then all rejected by {@link DecryptingInputStream}. Suites that are not
+ * authenticated only detect a stream cut short between frames.
+ *
+ * @see DecryptingInputStream
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class EncryptingOutputStream extends FilterOutputStream {
+
+    // set in the length of the last frame, which never needs its sign bit
+    static final int LAST_FRAME = 0x80000000;
+
+    private final DataOutputStream out;
+    private final CipherSuite suite;
+    private final byte[] chunk = new byte[Security.CHUNK_SIZE];
+    private byte[] cipherText = new byte[0];
+    private int count;
+    private byte[] streamId;
+    private long sequence;
+    private boolean finished;
+
+    /**
+     * Create an encrypting stream on top of another output stream.
+     *
+     * @param out   the stream to write the encrypted frames to
+     * @param suite the cipher suite to encrypt with
+     */
+    public EncryptingOutputStream(OutputStream out, CipherSuite suite) {
+        super(out);
+        this.out = new DataOutputStream(out);
+        this.suite = suite;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (finished)
+            throw new IOException("Encrypted stream already finished");
+        if (count == chunk.length)
+            encryptChunk();
+        chunk[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished)
+            throw new IOException("Encrypted stream already finished");
+        while (len > 0) {
+            if (count == chunk.length)
+                encryptChunk();
+            int n = Math.min(len, chunk.length - count);
+            System.arraycopy(b, off, chunk, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Encrypt whatever is buffered as a frame and flush the underlying stream.
+     *
+     * @throws IOException  if an error occurs while encrypting or writing
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0 && !finished)
+            encryptChunk();
+        out.flush();
+    }
+
+    /**
+     * Encrypt whatever is buffered as the last frame, possibly an empty one, and flush the
+     * underlying stream. Nothing can be written afterwards.
+     *
+     * @throws IOException  if an error occurs while encrypting or writing
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        finished = true;
+        encryptChunk();
+        out.flush();
+    }
+
+    /**
+     * Encrypt the buffered chunk and write it out as a single frame.
+     *
+     * @throws IOException  if an error occurs while encrypting or writing
+     */
+    private void encryptChunk() throws IOException {
+        try {
+            byte[] iv = Security.newIV(suite);
+            if (streamId == null)
+                streamId = iv;
+            Cipher cipher = Security.getCipher(suite, Cipher.ENCRYPT_MODE, iv);
+            authenticate(cipher, suite, streamId, sequence++, finished);
+            int size = cipher.getOutputSize(count);
+            if (cipherText.length < size)
+                cipherText = new byte[size];
+            size = cipher.doFinal(chunk, 0, count, cipherText, 0);
+
+            out.write(iv);
+            out.writeInt(finished ? size | LAST_FRAME : size);
+            out.write(cipherText, 0, size);
+            count = 0;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Unable to encrypt data: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Bind a frame to its place in the stream, if the suite can authenticate additional data.
+     *
+     * @param cipher    the cipher initialized for the frame
+     * @param suite     the cipher suite
+     * @param streamId  the IV of the first frame of the stream
+     * @param sequence  the sequence number of the frame in the stream
+     * @param last      whether the frame is the last one of the stream
+     */
+    static void authenticate(Cipher cipher, CipherSuite suite, byte[] streamId, long sequence, boolean last) {
+        if (!suite.isAuthenticated())
+            return;
+        ByteBuffer aad = ByteBuffer.allocate(streamId.length + 9);
+        aad.put(streamId).putLong(sequence).put((byte) (last ? 1 : 0));
+        cipher.updateAAD(aad.array());
+    }
+}
@@ -0,0 +1,268 @@
+package chat;
+
+import protocol.Message;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * This class finds out which peers have gone away without saying goodbye.
+ * Every instance sends a heartbeat each second, and the arrival times of the heartbeats from
+ * a peer feed a phi-accrual failure detector: rather than a fixed timeout, phi expresses how
+ * unlikely the silence of the peer is given the intervals seen so far, so the detector adapts
+ * to the jitter of the network. A peer whose phi grows past a first threshold is reported as
+ * not responding, past a second one it is considered dead and removed from the known peers.
+ * Only peers that have sent a heartbeat or were learnt from another peer are monitored, older
+ * versions of the application never send one. The checks run on a timing wheel, one timer per
+ * monitored peer.
+ *
+ * @see <a href="https://doi.org/10.1109/RELDIS.2004.1353004">The phi accrual failure detector</a>
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class FailureDetector {
+
+    private static final Logger LOGGER = Logging.setup(Logger.getLogger(FailureDetector.class.getName()));
+
+    // how often heartbeats are sent
+    private static final long INTERVAL = 1000;
+
+    // how often each peer is checked, often enough to catch it between the two thresholds
+    private static final long CHECK_INTERVAL = 250;
+
+    // the thresholds of phi for suspecting a peer and for giving up on it
+    private static final double SUSPECT_PHI = 5;
+    private static final double DEAD_PHI = 10;
+
+    // the number of intervals the estimate is based on
+    private static final int WINDOW_SIZE = 100;
+
+    // floor of the deviation, so that very regular heartbeats do not make phi oversensitive
+    private static final double MIN_STD_DEVIATION = 200;
+
+    // a pause that is tolerated on top of the usual interval, e.g. a few lost heartbeats
+    private static final double ACCEPTABLE_PAUSE = 2000;
+
+    private static final HashedTimingWheel WHEEL = new HashedTimingWheel("failure-detector", 100, TimeUnit.MILLISECONDS, 512);
+
+    // the monitored peers, by key
+    private static final Map<Long, Monitor> MONITORS = new ConcurrentHashMap<>();
+
+    // whether the heartbeats were started, each one then schedules the next
+    private static boolean STARTED = false;
+
+    /**
+     * Start sending heartbeats.
+     */
+    public static synchronized void start() {
+        if (STARTED)
+            return;
+        STARTED = true;
+        WHEEL.schedule(FailureDetector::beat, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop sending heartbeats and checking the peers.
+     */
+    public static synchronized void stop() {
+        WHEEL.stop();
+    }
+
+    /**
+     * Record a heartbeat from a peer, starting to monitor it if it is not monitored yet.
+     *
+     * @param peer  the peer
+     */
+    public static void heartbeat(Peer peer) {
+        Monitor monitor = MONITORS.get(peer.getKey());
+        if (monitor == null && (monitor = monitor(peer)) == null)
+            return;
+        monitor.arrived(System.currentTimeMillis(), true);
+    }
+
+    /**
+     * Start monitoring a peer as if it had just sent a heartbeat, e.g. a peer learnt from another
+     * one, so that it is dropped if it never turns out to be alive.
+     * A peer that is monitored already is left alone.
+     *
+     * @param peer  the peer
+     */
+    public static void watch(Peer peer) {
+        monitor(peer);
+    }
+
+    /**
+     * Start monitoring a peer unless it is monitored already.
+     *
+     * @param peer  the peer
+     * @return      the monitor of the peer if it was monitored already, else null
+     */
+    private static Monitor monitor(Peer peer) {
+        Monitor created = new Monitor(peer);
+        Monitor monitor = MONITORS.putIfAbsent(peer.getKey(), created);
+        if (monitor == null)
+            created.check = WHEEL.schedule(created::check, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        return monitor;
+    }
+
+    /**
+     * Record that a monitored peer was heard from, e.g. by a chat message.
+     * Peers that are not monitored are left alone.
+     *
+     * @param peer  the peer
+     */
+    public static void heard(Peer peer) {
+        Monitor monitor = MONITORS.get(peer.getKey());
+        if (monitor != null)
+            monitor.arrived(System.currentTimeMillis(), false);
+    }
+
+    /**
+     * Stop monitoring a peer, e.g. when it said goodbye.
+     *
+     * @param peer  the peer
+     */
+    public static void forget(Peer peer) {
+        Monitor monitor = MONITORS.remove(peer.getKey());
+        if (monitor != null && monitor.check != null)
+            monitor.check.cancel();
+    }
+
+    /**
+     * Send a heartbeat to every peer and schedule the next one.
+     */
+    private static void beat() {
+        try {
+            Message heartbeat = new Message(Message.HEARTBEAT, Features.advertisement());
+            // a broadcast or multicast reaches every peer with a single datagram
+            if (!Discovery.announce(heartbeat))
+                UDPMessageSender.getInstance().send(PeerManager.getInstance().getAllPeers(), heartbeat);
+        } finally {
+            WHEEL.schedule(FailureDetector::beat, INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The heartbeat history of a monitored peer.
+     */
+    private static class Monitor {
+
+        private final Peer peer;
+
+        // the last intervals between heartbeats in milliseconds, in a ring
+        private final long[] intervals = new long[WINDOW_SIZE];
+        private int count;
+        private int next;
+        private double sum;
+        private double squares;
+        private long lastArrival;
+
+        // the last time anything came from the peer, which the silence is measured from
+        private long lastHeard;
+
+        private boolean suspected;
+        private volatile HashedTimingWheel.Timeout check;
+
+        /**
+         * Start monitoring a peer from its first heartbeat.
+         * The history is seeded with intervals around the heartbeat interval, as the
+         * actual intervals are not known yet.
+         *
+         * @param peer  the peer
+         */
+        Monitor(Peer peer) {
+            this.peer = peer;
+            this.lastArrival = System.currentTimeMillis();
+            this.lastHeard = this.lastArrival;
+            add(INTERVAL - INTERVAL / 4);
+            add(INTERVAL + INTERVAL / 4);
+        }
+
+        /**
+         * Record the arrival of a message from the peer.
+         * Only heartbeats count towards the intervals, the other messages just show the peer is alive.
+         *
+         * @param now       the time of arrival in milliseconds
+         * @param heartbeat true if the message is a heartbeat
+         */
+        synchronized void arrived(long now, boolean heartbeat) {
+            if (heartbeat) {
+                add(now - this.lastArrival);
+                this.lastArrival = now;
+            }
+            this.lastHeard = Math.max(this.lastHeard, now);
+        }
+
+        /**
+         * Add an interval to the history, replacing the oldest one if the history is full.
+         *
+         * @param interval  the interval in milliseconds
+         */
+        private void add(long interval) {
+            if (this.count == WINDOW_SIZE) {
+                long oldest = this.intervals[this.next];
+                this.sum -= oldest;
+                this.squares -= (double) oldest * oldest;
+            } else {
+                this.count++;
+            }
+            this.intervals[this.next] = interval;
+            this.next = (this.next + 1) % WINDOW_SIZE;
+            this.sum += interval;
+            this.squares += (double) interval * interval;
+        }
+
+        /**
+         * Compute how suspicious the silence of the peer is at a given time.
+         * The intervals are taken to be normally distributed, with the cumulative distribution
+         * approximated by a logistic function as in Akka.
+         *
+         * @param now   the current time in milliseconds
+         * @return      phi, the negated base-10 logarithm of the probability that a heartbeat
+         *              still arrives this late
+         */
+        synchronized double phi(long now) {
+            double mean = this.sum / this.count + ACCEPTABLE_PAUSE;
+            double variance = this.squares / this.count - (this.sum / this.count) * (this.sum / this.count);
+            double deviation = Math.max(Math.sqrt(Math.max(variance, 0)), MIN_STD_DEVIATION);
+
+            double silence = now - this.lastHeard;
+            double y = (silence - mean) / deviation;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            double late = silence > mean ? e / (1 + e) : 1 - 1 / (1 + e);
+            return -Math.log10(Math.max(late, Double.MIN_VALUE));
+        }
+
+        /**
+         * Check the peer, reporting it if it is suspected or dead, and schedule the next check.
+         */
+        void check() {
+            if (MONITORS.get(this.peer.getKey()) != this)
+                return; // forgotten in the meantime
+
+            double phi = phi(System.currentTimeMillis());
+            if (phi >= DEAD_PHI) {
+                MONITORS.remove(this.peer.getKey(), this);
+                Reliability.forget(this.peer);
+                Fragmenter.forget(this.peer.getAddress());
+                UDPMessageSender.getInstance().forget(this.peer);
+                LOGGER.info(this.peer + " timed out, phi " + phi);
+                if (PeerManager.getInstance().remove(this.peer))
+                    UserInterface.display(this.peer.toString() + " left (not responding).");
+                return;
+            }
+
+            if (phi >= SUSPECT_PHI && !this.suspected) {
+                this.suspected = true;
+                UserInterface.display(this.peer.toString() + " is not responding.");
+            } else if (phi < SUSPECT_PHI && this.suspected) {
+                this.suspected = false;
+                UserInterface.display(this.peer.toString() + " is responding again.");
+            }
+            this.check = WHEEL.schedule(this::check, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package chat;
+
+/**
+ * This class tells which features of the protocol an instance supports, so that peers running an
+ * older version are only sent what they understand.
+ * Every instance advertises its features in its greetings, their answers and its heartbeats, as
+ * a word of one letter per feature, or "-" if it has none. Older versions advertise nothing, and
+ * a peer that has not advertised anything yet is treated as one of them.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class Features {
+
+    // a member of the multicast group, see Multicast
+    public static final int MULTICAST = 1;
+
+    // chunked, resumable and delta file transfers, see TCPMessageSender
+    public static final int TRANSFERS = 1 << 1;
+
+    // messages in the binary format of MessageCodec, see UDPMessageSender
+    public static final int BINARY = 1 << 2;
+
+    // the letter of each feature, by bit
+    private static final String LETTERS = "mtb";
+    private static final String NONE = "-";
+
+    /**
+     * Get what this instance advertises about its features.
+     *
+     * @return  the field to add to greetings and heartbeats
+     */
+    public static String advertisement() {
+        int features = TRANSFERS | BINARY;
+        if (Multicast.isJoined())
+            features |= MULTICAST;
+        return format(features);
+    }
+
+    /**
+     * Record what a known peer advertised about its features.
+     *
+     * @param ip            the IP address of the peer
+     * @param advertisement the advertised field, or null if the peer sent none
+     */
+    public static void advertised(String ip, String advertisement) {
+        Peer known = PeerManager.getInstance().get(ip);
+        if (known != null)
+            known.setFeatures(parse(advertisement));
+    }
+
+    /**
+     * Check whether a peer advertised a feature.
+     * Unless the peer is the known instance, it is looked up among the known peers, as it may be
+     * a copy made for sending.
+     *
+     * @param peer      the peer
+     * @param feature   the feature to check
+     * @return          true if the peer is known and advertised the feature
+     */
+    public static boolean supports(Peer peer, int feature) {
+        if ((peer.getFeatures() & feature) != 0)
+            return true;
+        Peer known = PeerManager.getInstance().get(peer.getIPAddress());
+        return known != null && (known.getFeatures() & feature) != 0;
+    }
+
+    /**
+     * Format features as an advertisement.
+     *
+     * @param features  the features, as bits
+     * @return          the advertised field
+     */
+    static String format(int features) {
+        StringBuilder builder = new StringBuilder(LETTERS.length());
+        for (int i = 0; i < LETTERS.length(); i++) {
+            if ((features & 1 << i) != 0)
+                builder.append(LETTERS.charAt(i));
+        }
+        return builder.length() == 0 ? NONE : builder.toString();
+    }
+
+    /**
+     * Parse an advertisement, ignoring the letters of features unknown to this version.
+     *
+     * @param advertisement the advertised field, or null if the peer sent none
+     * @return              the features, as bits
+     */
+    static int parse(String advertisement) {
+        int features = 0;
+        if (advertisement == null)
+            return features;
+        for (int i = 0; i < advertisement.length(); i++) {
+            int bit = LETTERS.indexOf(advertisement.charAt(i));
+            if (bit >= 0)
+                features |= 1 << bit;
+        }
+        return features;
+    }
+}
@@ -0,0 +1,469 @@
+package chat;
+
+import protocol.Message;
+import protocol.TCPMessage;
+
+import javax.crypto.Cipher;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * This class receives files sent by {@link TCPMessageSender}.
+ * A file may arrive over several connections at once, each of them carrying a series of
+ * chunks that are written at their offset into a file preallocated to the full size.
+ * Completed chunks are checkpointed in a {@link TransferManifest}, so a transfer that
+ * breaks off can later be resumed with only the missing ranges.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class FileReceiver {
+
+    private static final Logger LOGGER = Logging.setup(Logger.getLogger(FileReceiver.class.getName()));
+
+    private static final int BUFFER_SIZE = 128 * 1024;
+
+    // marks the end of the chunks sent over a connection
+    static final long END_OF_CHUNKS = -1;
+
+    // comes first in the file header, where older versions write the length of the file name,
+    // which is never this long
+    static final int LAYOUT_MARKER = 0xFFFF;
+
+    // the files currently being received, by name
+    private static final Map<String, IncomingFile> INCOMING = new HashMap<>();
+
+    /**
+     * Receive the chunks of a file sent over a connection.
+     * The message header has been consumed already, the file header and the chunks follow.
+     * On the first connection of a transfer, a {@link Message#FILE} message, the receiver
+     * answers the header with the ranges it is missing. Additional connections of the same
+     * transfer, {@link Message#FILE_PART} messages, carry chunks only.
+     * Files sent by older versions, whose header does not start with {@link #LAYOUT_MARKER},
+     * are received as they expect, see {@link #receiveLegacy}.
+     *
+     * @param msg           the received message
+     * @throws Exception    if the file cannot be received
+     */
+    public static void receive(TCPMessage msg) throws Exception {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(msg.getSocket().getInputStream(), BUFFER_SIZE));
+        try {
+            int marker = in.readUnsignedShort();
+            if (marker != LAYOUT_MARKER) {
+                if (!msg.getHeader().equals(Message.FILE))
+                    throw new IOException("Unsupported file header");
+                receiveLegacy(msg, in, marker);
+                return;
+            }
+
+            String filename = getSafeName(in.readUTF());
+            long filesize = in.readLong();
+            long fileId = in.readLong();
+            byte suite = in.readByte();
+            byte compression = in.readByte();
+
+            // undo the encryption first, then the compression
+            // the ranges are encrypted along with the contents, only the contents are compressed
+            InputStream body = in;
+            if (suite != CipherSuite.NONE)
+                body = new DecryptingInputStream(body, CipherSuite.fromId(suite));
+            DataInputStream ranges = body == in ? in : new DataInputStream(body);
+            DecompressingInputStream decompressing = null;
+            if (compression == Compression.DEFLATE)
+                body = decompressing = new DecompressingInputStream(body);
+            else if (compression != Compression.NONE)
+                throw new IOException("Unsupported compression: " + compression);
+
+            try {
+                receiveChunks(msg, ranges, body, filename, filesize, fileId);
+                if (ranges != in)
+                    checkEnd(ranges);
+            } finally {
+                if (decompressing != null)
+                    decompressing.end();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Receive the chunks of a file over a connection whose file header has been read.
+     *
+     * @param msg           the received message
+     * @param in            the stream of the ranges of the chunks, decrypted
+     * @param body          the stream of the chunk contents, decrypted and decompressed
+     * @param filename      the file name
+     * @param filesize      the full size of the file
+     * @param fileId        the identifier of the file version
+     * @throws Exception    if the file cannot be received
+     */
+    private static void receiveChunks(TCPMessage msg, DataInputStream in, InputStream body,
+                                      String filename, long filesize, long fileId) throws Exception {
+        boolean first = msg.getHeader().equals(Message.FILE);
+        IncomingFile file = first ? open(filename, filesize, fileId) : join(filename, filesize, fileId);
+        try {
+            if (first) {
+                List<long[]> missing = file.manifest.getMissing();
+                writeRanges(msg, missing);
+                if (missing.isEmpty() && file.markReported())
+                    UserInterface.display("Received file " + filename + " from " + msg.getSrcIP());
+            }
+
+            long offset;
+            while ((offset = in.readLong()) != END_OF_CHUNKS) {
+                long length = in.readLong();
+                if (file.write(body, offset, length))
+                    UserInterface.display("Received file " + filename + " from " + msg.getSrcIP());
+            }
+        } finally {
+            release(file);
+        }
+    }
+
+    /**
+     * Receive a file sent by an older version: the file name, the length of the contents, then the
+     * contents, encrypted as a whole with triple-DES if encryption is enabled on both sides.
+     * Encrypted contents are decrypted on the fly rather than in memory.
+     *
+     * @param msg           the received message
+     * @param in            the stream of the connection, past the length of the file name
+     * @param nameLength    the length of the file name in modified UTF-8
+     * @throws Exception    if the file cannot be received
+     */
+    private static void receiveLegacy(TCPMessage msg, DataInputStream in, int nameLength) throws Exception {
+        byte[] name = new byte[2 + nameLength];
+        name[0] = (byte) (nameLength >>> 8);
+        name[1] = (byte) nameLength;
+        in.readFully(name, 2, nameLength);
+        String filename = getSafeName(new DataInputStream(new ByteArrayInputStream(name)).readUTF());
+        long length = in.readLong();
+        if (length < 0)
+            throw new IOException("Invalid length of " + filename + ": " + length);
+
+        // [IV][cipher text] when encrypted
+        Cipher cipher = null;
+        if (Security.isEncryptionEnabled()) {
+            byte[] iv = new byte[CipherSuite.DESEDE_CBC.getIvLength()];
+            if (length < iv.length)
+                throw new IOException("Invalid length of encrypted " + filename + ": " + length);
+            in.readFully(iv);
+            cipher = Security.getCipher(CipherSuite.DESEDE_CBC, Cipher.DECRYPT_MODE, iv);
+            length -= iv.length;
+        }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(filename), BUFFER_SIZE);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            byte[] plainText = cipher == null ? null : new byte[cipher.getOutputSize(buffer.length)];
+            long remaining = length;
+            while (remaining > 0) {
+                int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1)
+                    throw new EOFException("Connection closed in the middle of " + filename);
+                if (cipher == null)
+                    out.write(buffer, 0, bytesRead);
+                else
+                    out.write(plainText, 0, cipher.update(buffer, 0, bytesRead, plainText, 0));
+                remaining -= bytesRead;
+            }
+            if (cipher != null)
+                out.write(plainText, 0, cipher.doFinal(plainText, 0));
+        } finally {
+            out.close();
+        }
+        UserInterface.display("Received file " + filename + " from " + msg.getSrcIP());
+    }
+
+    /**
+     * Receive a file sent as a delta against the local copy of it.
+     * The message header has been consumed already, the file header follows. The receiver answers
+     * with the signature of its copy, then rebuilds the file next to it from the copy and the delta,
+     * and finally replaces the copy with it.
+     *
+     * @param msg           the received message
+     * @throws Exception    if the file cannot be received
+     */
+    public static void receiveDelta(TCPMessage msg) throws Exception {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(msg.getSocket().getInputStream(), BUFFER_SIZE));
+        FileChannel basis = null;
+        try {
+            String filename = getSafeName(in.readUTF());
+            long filesize = in.readLong();
+            byte suite = in.readByte();
+            DataInputStream body = suite == CipherSuite.NONE
+                    ? in : new DataInputStream(new DecryptingInputStream(in, CipherSuite.fromId(suite)));
+
+            File target = new File(filename);
+            if (target.isFile())
+                basis = FileChannel.open(target.toPath(), StandardOpenOption.READ);
+            DeltaTransfer.Signature signature = DeltaTransfer.computeSignature(basis);
+            DeltaTransfer.writeSignature(signature, new DataOutputStream(
+                    new BufferedOutputStream(msg.getSocket().getOutputStream(), BUFFER_SIZE)));
+
+            // the rebuilt file only replaces the copy once it is complete, else it is dropped
+            File temp = new File(filename + ".delta");
+            boolean moved = false;
+            try {
+                long written;
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE);
+                try {
+                    written = DeltaTransfer.applyDelta(body, basis, signature, out);
+                } finally {
+                    out.close();
+                }
+                if (body != in)
+                    checkEnd(body);
+                if (written != filesize)
+                    throw new IOException("Rebuilt " + filename + " has " + written + " bytes instead of " + filesize);
+
+                if (basis != null)
+                    basis.close();
+                Files.move(temp.toPath(), target.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                moved = true;
+            } finally {
+                if (!moved && temp.exists() && !temp.delete())
+                    LOGGER.warning("Unable to delete " + temp);
+            }
+            UserInterface.display("Received file " + filename + " from " + msg.getSrcIP() + " as a delta");
+        } finally {
+            if (basis != null)
+                basis.close();
+            in.close();
+        }
+    }
+
+    /**
+     * Reduce a file name sent by a peer to its last path element, so that the file and the ones
+     * named after it, e.g. its manifest, stay in the current directory.
+     *
+     * @param filename      the received file name
+     * @return              the name to store the file under
+     * @throws IOException  if nothing usable is left of the name
+     */
+    static String getSafeName(String filename) throws IOException {
+        String name = filename.substring(Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\')) + 1);
+        if (name.isEmpty() || name.equals(".") || name.equals("..") || name.indexOf('\0') >= 0
+                || name.equals(Security.SECRET_KEY_FILE))
+            throw new IOException("Invalid file name: " + filename);
+        return name;
+    }
+
+    /**
+     * Make sure a decrypted stream ends right after what has been read from it, with its last frame.
+     *
+     * @param in            the decrypted stream
+     * @throws IOException  if the stream ends without its last frame, or goes on
+     */
+    private static void checkEnd(InputStream in) throws IOException {
+        if (in.read() != -1)
+            throw new IOException("Unexpected data after the end of the transfer");
+    }
+
+    /**
+     * Answer the sender with the ranges of the file to send.
+     *
+     * @param msg           the received message
+     * @param ranges        the missing ranges as [offset, length] pairs
+     * @throws IOException  if the answer cannot be sent
+     */
+    private static void writeRanges(TCPMessage msg, List<long[]> ranges) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(msg.getSocket().getOutputStream()));
+        out.writeInt(ranges.size());
+        for (long[] range : ranges) {
+            out.writeLong(range[0]);
+            out.writeLong(range[1]);
+        }
+        out.flush();
+    }
+
+    /**
+     * Start the transfer of a file, or join it if another connection started it already.
+     * A partial file is picked up again if its manifest matches the file being sent.
+     *
+     * @param filename      the file name
+     * @param filesize      the full size of the file
+     * @param fileId        the identifier of the file version
+     * @return              the file being received
+     * @throws IOException  if the file cannot be prepared
+     */
+    private static IncomingFile open(String filename, long filesize, long fileId) throws IOException {
+        synchronized (INCOMING) {
+            IncomingFile file = INCOMING.get(filename);
+            if (file == null || !file.manifest.matches(filesize, fileId)) {
+                file = new IncomingFile(filename, filesize, fileId);
+                INCOMING.put(filename, file);
+            }
+            file.connections++;
+            return file;
+        }
+    }
+
+    /**
+     * Join a transfer started by a {@link Message#FILE} connection, as an additional connection.
+     * The other connections may all be done with the file before this one arrives, while chunks
+     * claimed by this one are still missing; the file is then reopened from its manifest.
+     * Only the first connection prepares the file and its manifest, so a connection that arrives
+     * after the transfer completed, or after a restart, cannot leave a stale manifest behind.
+     *
+     * @param filename      the file name
+     * @param filesize      the full size of the file
+     * @param fileId        the identifier of the file version
+     * @return              the file being received
+     * @throws IOException  if there is no such transfer in progress
+     */
+    private static IncomingFile join(String filename, long filesize, long fileId) throws IOException {
+        synchronized (INCOMING) {
+            IncomingFile file = INCOMING.get(filename);
+            if (file == null && isResumable(filename, filesize, fileId)) {
+                file = new IncomingFile(filename, filesize, fileId);
+                INCOMING.put(filename, file);
+            }
+            if (file == null || !file.manifest.matches(filesize, fileId) || file.manifest.isComplete())
+                throw new IOException("No transfer of " + filename + " in progress");
+            file.connections++;
+            return file;
+        }
+    }
+
+    /**
+     * Check whether a file that is not open has a manifest of the given version with chunks missing,
+     * so that opening it resumes from the manifest rather than starting afresh.
+     *
+     * @param filename      the file name
+     * @param filesize      the full size of the file
+     * @param fileId        the identifier of the file version
+     * @return              true if the file can be resumed
+     */
+    private static boolean isResumable(String filename, long filesize, long fileId) {
+        TransferManifest saved = TransferManifest.load(filename);
+        File file = new File(filename);
+        return saved != null && saved.matches(filesize, fileId) && !saved.isComplete()
+                && file.isFile() && file.length() == filesize;
+    }
+
+    /**
+     * Leave the transfer of a file, closing it once the last connection is done with it.
+     *
+     * @param file  the file being received
+     */
+    private static void release(IncomingFile file) {
+        synchronized (INCOMING) {
+            if (--file.connections > 0)
+                return;
+            INCOMING.remove(file.name, file);
+        }
+        try {
+            file.channel.close();
+        } catch (IOException e) {
+            LOGGER.warning("Error closing file " + file.name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * A file being received, possibly over several connections at once.
+     */
+    private static class IncomingFile {
+
+        private final String name;
+        private final long size;
+        private final FileChannel channel;
+        private final TransferManifest manifest;
+        private boolean reported;
+        private int connections;
+
+        /**
+         * Open the file, resuming from its manifest if there is a matching one,
+         * otherwise starting afresh with the full size allocated up front.
+         *
+         * @param name          the file name
+         * @param size          the full size of the file
+         * @param fileId        the identifier of the file version
+         * @throws IOException  if the file cannot be created
+         */
+        IncomingFile(String name, long size, long fileId) throws IOException {
+            this.name = name;
+            this.size = size;
+            this.channel = FileChannel.open(Paths.get(name),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            TransferManifest saved = TransferManifest.load(name);
+            if (saved != null && saved.matches(size, fileId) && this.channel.size() == size) {
+                this.manifest = saved;
+                LOGGER.info("Resuming " + name + " from its manifest");
+            } else {
+                this.manifest = new TransferManifest(name, size, fileId);
+                if (this.channel.size() > size)
+                    this.channel.truncate(size);
+                else if (this.channel.size() < size)
+                    this.channel.write(ByteBuffer.allocate(1), size - 1);
+                if (size > 0)
+                    this.manifest.save();
+            }
+        }
+
+        /**
+         * Read a chunk from the stream, write it at its offset and checkpoint it.
+         *
+         * @param in            the stream carrying the chunk contents
+         * @param offset        the offset of the chunk in the file
+         * @param length        the length of the chunk
+         * @return              true if this chunk completed the file
+         * @throws IOException  if the chunk is invalid or cannot be written
+         */
+        boolean write(InputStream in, long offset, long length) throws IOException {
+            if (offset < 0 || length < 0 || offset + length > this.size)
+                throw new IOException("Invalid chunk [" + offset + ", " + length + "] for " + this.name);
+
+            byte[] buffer = new byte[(int) Math.min(Security.CHUNK_SIZE, Math.max(length, 1))];
+            long position = offset;
+            long remaining = length;
+            while (remaining > 0) {
+                int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1)
+                    throw new EOFException("Connection closed in the middle of a chunk of " + this.name);
+
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+                while (data.hasRemaining())
+                    position += this.channel.write(data, position);
+                remaining -= bytesRead;
+            }
+
+            // the data must be on disk before the manifest claims it is
+            this.channel.force(false);
+            synchronized (this.manifest) {
+                this.manifest.add(offset, length);
+                if (!this.manifest.isComplete()) {
+                    this.manifest.save();
+                    return false;
+                }
+                this.manifest.delete();
+            }
+            return markReported();
+        }
+
+        /**
+         * Mark the completion of the file as reported.
+         *
+         * @return  true if it had not been reported yet
+         */
+        synchronized boolean markReported() {
+            boolean first = !this.reported;
+            this.reported = true;
+            return first;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package chat;
+
+import protocol.MessageCodec;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * This class splits the frames too large for a datagram into fragments, and puts them back
+ * together on the receiving side.
+ * Each fragment goes out in a {@link MessageCodec#FRAGMENT} envelope laid out as follows:
+ * <pre>
+ *     [id: 4 bytes][index: 2 bytes][count: 2 bytes][part of the frame]
+ * </pre>
+ * The id tells apart the frames of a sender. The receiver keeps the fragments of a frame until
+ * all of them arrived, within a bounded amount of memory: the oldest incomplete frames of a peer
+ * are dropped to make room for new ones, the frames still incomplete after a timeout are dropped
+ * by a sweep every second, or when the peer leaves, and the fragments from new senders are
+ * dropped while too many senders have incomplete frames.
+ * A lost fragment loses the whole frame, unless it is sent reliably, see {@link Reliability}.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class Fragmenter {
+
+    private static final Logger LOGGER = Logging.setup(Logger.getLogger(Fragmenter.class.getName()));
+
+    private static final int FRAGMENT_BODY_LENGTH = 8;
+
+    // the largest part of a frame in a fragment, so that a fragment fills a datagram
+    private static final int CHUNK_SIZE = Coalescer.MAX_DATAGRAM_SIZE - MessageCodec.HEADER_LENGTH - FRAGMENT_BODY_LENGTH;
+
+    // the most fragments of a frame, enough for the largest frame
+    private static final int MAX_FRAGMENTS = 64;
+
+    // the bounds of the incomplete frames kept for a peer
+    private static final int MAX_INCOMPLETE = 8;
+    private static final int MAX_INCOMPLETE_BYTES = 256 * 1024;
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+    // the most senders with incomplete frames, and how often the timed out frames are dropped
+    private static final int MAX_SENDERS = 256;
+    private static final long SWEEP_INTERVAL = 1000;
+
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    // the frames being put back together, by key of the sender; a sender is only tracked
+    // while it has incomplete frames
+    private static final Map<Long, Reassembly> REASSEMBLIES = new ConcurrentHashMap<>();
+
+    private static final HashedTimingWheel WHEEL = new HashedTimingWheel("fragmenter", 100, TimeUnit.MILLISECONDS, 16);
+
+    static {
+        WHEEL.schedule(Fragmenter::sweep, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Check whether a frame is too large for a datagram.
+     *
+     * @param frame the encoded frame
+     * @return      true if it has to be split
+     */
+    public static boolean isTooLarge(ByteBuffer frame) {
+        return frame.remaining() > Coalescer.MAX_DATAGRAM_SIZE;
+    }
+
+    /**
+     * Split a frame into fragments.
+     *
+     * @param frame the encoded frame, from its position to its limit
+     * @return      the fragments, to be sent in order
+     */
+    public static List<ByteBuffer> split(ByteBuffer frame) {
+        int id = NEXT_ID.getAndIncrement();
+        int count = (frame.remaining() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (count > MAX_FRAGMENTS)
+            throw new IllegalArgumentException("Frame too large to fragment: " + frame.remaining() + " bytes");
+
+        // all the fragments in a single buffer, handed out as slices
+        ByteBuffer fragments = ByteBuffer.allocate(frame.remaining() + count * (MessageCodec.HEADER_LENGTH + FRAGMENT_BODY_LENGTH));
+        List<ByteBuffer> sliced = new ArrayList<>(count);
+        ByteBuffer chunk = frame.duplicate();
+        for (int index = 0; index < count; index++) {
+            int length = Math.min(CHUNK_SIZE, frame.remaining() - index * CHUNK_SIZE);
+            chunk.limit(chunk.position() + length);
+
+            int start = fragments.position();
+            MessageCodec.putHeader(MessageCodec.FRAGMENT, FRAGMENT_BODY_LENGTH + length, fragments);
+            fragments.putInt(id).putShort((short) index).putShort((short) count).put(chunk);
+
+            ByteBuffer fragment = fragments.duplicate();
+            fragment.limit(fragments.position()).position(start);
+            sliced.add(fragment.slice());
+        }
+        return sliced;
+    }
+
+    /**
+     * Receive a fragment, returning the whole frame once all its fragments arrived.
+     *
+     * @param fragment  the fragment
+     * @param src       the address of the sender
+     * @return          the frame, or null if it is not complete yet
+     */
+    public static ByteBuffer reassemble(ByteBuffer fragment, InetSocketAddress src) {
+        int start = fragment.position();
+        if (MessageCodec.opcodeOf(fragment) != MessageCodec.FRAGMENT)
+            return null;
+        int length = (fragment.getShort(start + 4) & 0xFFFF) - FRAGMENT_BODY_LENGTH;
+        int body = start + MessageCodec.HEADER_LENGTH;
+        int id = fragment.getInt(body);
+        int index = fragment.getShort(body + 4) & 0xFFFF;
+        int count = fragment.getShort(body + 6) & 0xFFFF;
+        if (length <= 0 || count > MAX_FRAGMENTS || index >= count) {
+            LOGGER.warning("Invalid fragment from " + src);
+            return null;
+        }
+
+        byte[] chunk = new byte[length];
+        ByteBuffer part = fragment.duplicate();
+        part.position(body + FRAGMENT_BODY_LENGTH);
+        part.get(chunk);
+
+        long key = IPv4.key(ByteBuffer.wrap(src.getAddress().getAddress()).getInt(), src.getPort());
+        ByteBuffer[] frame = new ByteBuffer[1];
+        REASSEMBLIES.compute(key, (k, reassembly) -> {
+            if (reassembly == null) {
+                if (REASSEMBLIES.size() >= MAX_SENDERS) {
+                    LOGGER.warning("Dropped a fragment from " + src + ", too many senders with incomplete frames");
+                    return null;
+                }
+                reassembly = new Reassembly();
+            }
+            frame[0] = reassembly.add(id, index, count, chunk);
+            return reassembly.isEmpty() ? null : reassembly;
+        });
+        return frame[0];
+    }
+
+    /**
+     * Forget the incomplete frames from a peer that left.
+     *
+     * @param address   the packed address of the peer
+     */
+    public static void forget(int address) {
+        REASSEMBLIES.keySet().removeIf(key -> (int) (key >>> 32) == address);
+    }
+
+    /**
+     * Drop the frames that timed out, and the senders left without incomplete frames.
+     */
+    private static void sweep() {
+        try {
+            long now = System.nanoTime();
+            for (Long key : REASSEMBLIES.keySet()) {
+                REASSEMBLIES.computeIfPresent(key, (k, reassembly) -> {
+                    reassembly.expire(now);
+                    return reassembly.isEmpty() ? null : reassembly;
+                });
+            }
+        } finally {
+            WHEEL.schedule(Fragmenter::sweep, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The incomplete frames from a peer, the oldest first.
+     * It is only used within the lock of its entry in the map of reassemblies.
+     */
+    private static class Reassembly {
+
+        private final Map<Integer, Partial> partials = new LinkedHashMap<>();
+        private int bytes;
+
+        /**
+         * Add a fragment, returning the frame if it is now complete.
+         *
+         * @param id    the id of the frame
+         * @param index the index of the fragment
+         * @param count the number of fragments of the frame
+         * @param chunk the part of the frame
+         * @return      the frame, or null if it is not complete yet
+         */
+        ByteBuffer add(int id, int index, int count, byte[] chunk) {
+            expire(System.nanoTime());
+
+            Partial partial = this.partials.get(id);
+            if (partial != null && partial.chunks.length != count) {
+                // an id reused by a restarted sender
+                remove(id);
+                partial = null;
+            }
+            if (partial == null) {
+                partial = new Partial(count);
+                this.partials.put(id, partial);
+            }
+            if (partial.chunks[index] != null)
+                return null; // a duplicate
+
+            partial.chunks[index] = chunk;
+            partial.received++;
+            partial.bytes += chunk.length;
+            this.bytes += chunk.length;
+
+            if (partial.received == count) {
+                remove(id);
+                ByteBuffer frame = ByteBuffer.allocate(partial.bytes);
+                for (byte[] part : partial.chunks)
+                    frame.put(part);
+                frame.flip();
+                return frame;
+            }
+
+            // make room, dropping the oldest frames
+            Iterator<Map.Entry<Integer, Partial>> oldest = this.partials.entrySet().iterator();
+            while ((this.partials.size() > MAX_INCOMPLETE || this.bytes > MAX_INCOMPLETE_BYTES) && oldest.hasNext()) {
+                Partial dropped = oldest.next().getValue();
+                this.bytes -= dropped.bytes;
+                oldest.remove();
+                LOGGER.warning("Dropped an incomplete frame of " + dropped.received + "/" + dropped.chunks.length + " fragments");
+            }
+            return null;
+        }
+
+        /**
+         * Drop the frames that were started too long ago.
+         *
+         * @param now   the current time in nanoseconds
+         */
+        void expire(long now) {
+            Iterator<Partial> oldest = this.partials.values().iterator();
+            while (oldest.hasNext()) {
+                Partial partial = oldest.next();
+                if (now - partial.startedAt < TIMEOUT)
+                    break; // the others are younger
+                this.bytes -= partial.bytes;
+                oldest.remove();
+                LOGGER.warning("Timed out an incomplete frame of " + partial.received + "/" + partial.chunks.length + " fragments");
+            }
+        }
+
+        boolean isEmpty() {
+            return this.partials.isEmpty();
+        }
+
+        private void remove(int id) {
+            Partial partial = this.partials.remove(id);
+            if (partial != null)
+                this.bytes -= partial.bytes;
+        }
+    }
+
+    /**
+     * The fragments of a frame received so far.
+     */
+    private static class Partial {
+
+        private final byte[][] chunks;
+        private final long startedAt = System.nanoTime();
+        private int received;
+        private int bytes;
+
+        Partial(int count) {
+            this.chunks = new byte[count][];
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package chat;
+
+import protocol.Message;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * This class answers the greetings of newcomers and reports the peers that join.
+ * When many instances start together, answering every greeting right away would take a number
+ * of packets growing with the square of the instances. Instead, the greetings are answered after
+ * a random delay, with a single {@link Message#HELLO_ACK} that answers every newcomer greeted in
+ * the meantime and lists the peers known here, so that the newcomers learn the whole network at
+ * once. The answer is broadcast when possible, and the other peers that see it drop the newcomers
+ * it answers from their own pending answers.
+ * The data of the answer is made of four fields separated by spaces: the stamp of the greeting
+ * if a single newcomer is answered, "-" otherwise, then the known peers and the answered newcomers,
+ * each as the base64 of [address][port] records, and last the features of the sender,
+ * see {@link Features#advertisement()}.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class Greeter {
+
+    private static final Logger LOGGER = Logging.setup(Logger.getLogger(Greeter.class.getName()));
+
+    // the bounds of the random delay before answering greetings, in milliseconds; the delay
+    // grows with the known peers so that two of them rarely answer before seeing each other
+    private static final int MIN_JITTER = 20;
+    private static final int MAX_JITTER = 200;
+    private static final int JITTER_PER_PEER = 2;
+    private static final int JITTER_LIMIT = 5000;
+
+    // joins are reported together if they happen within this delay, in milliseconds
+    private static final int REPORT_DELAY = 200;
+
+    // the most peers known and newcomers listed in an answer, so that it fits in a datagram
+    // of the listener: 8 characters of base64 per peer
+    private static final int MAX_LISTED = 60;
+    private static final int MAX_ANSWERED = 40;
+
+    private static final String NO_STAMP = "-";
+    private static final int RECORD_SIZE = 6;
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "greeter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // the newcomers waiting for an answer, with the stamps of their greetings
+    private static final Map<Peer, String> PENDING = new LinkedHashMap<>();
+    private static boolean answerScheduled;
+
+    // the peers that joined and are not reported yet
+    private static final List<Peer> JOINED = new ArrayList<>();
+
+    /**
+     * Answer the greeting of a newcomer, shortly and together with the other newcomers.
+     *
+     * @param newcomer  the peer that sent the greeting
+     * @param stamp     the stamp of the greeting
+     */
+    public static void answer(Peer newcomer, String stamp) {
+        synchronized (PENDING) {
+            PENDING.put(newcomer, stamp);
+            if (answerScheduled)
+                return;
+            answerScheduled = true;
+        }
+        int window = Math.min(MAX_JITTER + PeerManager.getInstance().size() * JITTER_PER_PEER, JITTER_LIMIT);
+        int jitter = ThreadLocalRandom.current().nextInt(MIN_JITTER, window + 1);
+        EXECUTOR.schedule(Greeter::sendAnswer, jitter, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drop newcomers from the pending answers, as another peer answered them already.
+     *
+     * @param newcomers the newcomers answered by another peer
+     */
+    public static void answered(Collection<Peer> newcomers) {
+        if (newcomers.isEmpty())
+            return;
+        synchronized (PENDING) {
+            PENDING.keySet().removeAll(newcomers);
+        }
+    }
+
+    /**
+     * Report that a peer joined, together with the other peers joining about the same time.
+     *
+     * @param peer  the peer that joined
+     */
+    public static void joined(Peer peer) {
+        synchronized (JOINED) {
+            JOINED.add(peer);
+            if (JOINED.size() > 1)
+                return;
+        }
+        EXECUTOR.schedule(Greeter::report, REPORT_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Encode peers as the base64 of their [address][port] records.
+     *
+     * @param peers the peers
+     * @return      the encoded peers
+     */
+    public static String encode(Collection<Peer> peers) {
+        ByteBuffer buffer = ByteBuffer.allocate(peers.size() * RECORD_SIZE);
+        for (Peer peer : peers) {
+            buffer.putInt(peer.getAddress());
+            buffer.putShort((short) peer.getPort());
+        }
+        return Base64.getEncoder().encodeToString(buffer.array());
+    }
+
+    /**
+     * Decode peers encoded by {@link #encode(Collection)}.
+     *
+     * @param encoded   the encoded peers
+     * @return          the peers, empty if the encoding is invalid
+     */
+    public static List<Peer> decode(String encoded) {
+        byte[] records;
+        try {
+            records = Base64.getDecoder().decode(encoded);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warning("Invalid list of peers: " + e.getMessage());
+            return Collections.emptyList();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(records);
+        List<Peer> peers = new ArrayList<>(records.length / RECORD_SIZE);
+        while (buffer.remaining() >= RECORD_SIZE)
+            peers.add(new Peer(buffer.getInt(), buffer.getShort() & 0xFFFF));
+        return peers;
+    }
+
+    /**
+     * Send a single answer to the newcomers still waiting for one.
+     */
+    private static void sendAnswer() {
+        Map<Peer, String> newcomers;
+        synchronized (PENDING) {
+            newcomers = new LinkedHashMap<>(PENDING);
+            PENDING.clear();
+            answerScheduled = false;
+        }
+        if (newcomers.isEmpty())
+            return; // all answered by other peers
+
+        try {
+            List<Peer> known = PeerManager.getInstance().getAllPeers();
+            if (known.size() > MAX_LISTED)
+                known = known.subList(0, MAX_LISTED);
+            String listed = encode(known);
+
+            List<Peer> answered = new ArrayList<>(newcomers.keySet());
+            for (int from = 0; from < answered.size(); from += MAX_ANSWERED) {
+                List<Peer> batch = answered.subList(from, Math.min(from + MAX_ANSWERED, answered.size()));
+                String stamp = batch.size() == 1 ? newcomers.get(batch.get(0)) : NO_STAMP;
+                if (stamp.isEmpty() || stamp.contains(Message.DELIMITER))
+                    stamp = NO_STAMP;
+                Message answer = new Message(Message.HELLO_ACK, stamp + Message.DELIMITER + listed
+                        + Message.DELIMITER + encode(batch) + Message.DELIMITER + Features.advertisement());
+
+                // broadcast, so that the other peers see the newcomers are answered
+                if (!Discovery.announce(answer))
+                    UDPMessageSender.getInstance().send(batch, answer);
+            }
+        } catch (Exception e) {
+            LOGGER.severe("Unable to answer greetings: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Report the peers that joined since the last report, on a single line if there are several.
+     */
+    private static void report() {
+        List<Peer> peers;
+        synchronized (JOINED) {
+            peers = new ArrayList<>(JOINED);
+            JOINED.clear();
+        }
+        if (peers.size() == 1)
+            UserInterface.display(peers.get(0).toString() + " joined.");
+        else if (peers.size() > 1)
+            UserInterface.display(peers.size() + " peers joined.");
+    }
+}
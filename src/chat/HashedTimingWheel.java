@@ -0,0 +1,172 @@
+package chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timing wheel running many timers on a single thread.
+ * Time is cut into ticks and each timer sits in the bucket of the tick it expires at, modulo
+ * the number of buckets, so scheduling and cancelling cost O(1) and a tick only looks at
+ * the timers of its own bucket. Timers fire with the precision of a tick, never early.
+ * The tasks run on the thread of the wheel and must be short.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class HashedTimingWheel {
+
+    private static final Logger LOGGER = Logging.setup(Logger.getLogger(HashedTimingWheel.class.getName()));
+
+    private final long tickNanos;
+    private final List<Timeout>[] buckets;
+    private final int mask;
+
+    // timers scheduled from other threads, moved into their bucket on the next tick
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean running = true;
+    private long tick;
+
+    /**
+     * Create a wheel and start its thread.
+     *
+     * @param name          the name of the thread
+     * @param tickDuration  the duration of a tick
+     * @param unit          the unit of the tick duration
+     * @param wheelSize     the number of buckets, rounded up to a power of two
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public HashedTimingWheel(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        this.tickNanos = Math.max(unit.toNanos(tickDuration), 1);
+        int size = Integer.highestOneBit(Math.max(wheelSize, 1) * 2 - 1);
+        this.buckets = new List[size];
+        for (int i = 0; i < size; i++)
+            this.buckets[i] = new ArrayList<>();
+        this.mask = size - 1;
+
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Run a task once after a delay.
+     *
+     * @param task  the task to run
+     * @param delay the delay
+     * @param unit  the unit of the delay
+     * @return      the timer, which can be cancelled
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - this.startTime + unit.toNanos(Math.max(delay, 0)));
+        this.pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stop the wheel; the timers not expired yet never run.
+     */
+    public void stop() {
+        this.running = false;
+        this.worker.interrupt();
+    }
+
+    /**
+     * Advance the wheel tick by tick until stopped.
+     */
+    private void run() {
+        while (this.running) {
+            long deadline = this.tickNanos * (this.tick + 1);
+            long sleep = deadline - (System.nanoTime() - this.startTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue; // stopped, or woken for nothing
+                }
+            }
+
+            transferPending();
+            expire(this.buckets[(int) (this.tick & this.mask)]);
+            this.tick++;
+        }
+    }
+
+    /**
+     * Put the newly scheduled timers in the bucket of their expiry tick.
+     */
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = this.pending.poll()) != null) {
+            if (timeout.cancelled)
+                continue;
+            // a timer that is already due goes in the current bucket
+            long expiry = Math.max(timeout.deadline / this.tickNanos, this.tick);
+            timeout.rounds = (expiry - this.tick) / this.buckets.length;
+            this.buckets[(int) (expiry & this.mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Run the timers of a bucket that expire in this round of the wheel, keeping the others.
+     *
+     * @param bucket    the bucket of the current tick
+     */
+    private void expire(List<Timeout> bucket) {
+        int kept = 0;
+        int size = bucket.size();
+        for (int i = 0; i < size; i++) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.cancelled)
+                continue;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                bucket.set(kept++, timeout);
+                continue;
+            }
+            try {
+                timeout.task.run();
+            } catch (Throwable e) {
+                LOGGER.severe("Error while running a timer: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        bucket.subList(kept, size).clear();
+    }
+
+    /**
+     * A timer scheduled on the wheel.
+     */
+    public static class Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private volatile boolean cancelled;
+
+        /**
+         * Create a timer.
+         *
+         * @param task      the task to run
+         * @param deadline  when to run it, in nanoseconds since the start of the wheel
+         */
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timer, if it has not run yet.
+         */
+        public void cancel() {
+            this.cancelled = true;
+        }
+    }
+}
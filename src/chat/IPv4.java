@@ -0,0 +1,80 @@
+package chat;
+
+/**
+ * Utility class for IPv4 addresses packed into an int, most significant octet first.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public final class IPv4 {
+
+    private IPv4() {
+    }
+
+    /**
+     * Pack an address in dotted-decimal notation into an int.
+     *
+     * @param address   the address, e.g. 192.168.1.10
+     * @return          the packed address
+     * @throws IllegalArgumentException if the address is not a valid IPv4 address
+     */
+    public static int pack(String address) {
+        int result = 0;
+        int octets = 0;
+        int value = -1;
+        for (int i = 0; i <= address.length(); i++) {
+            char c = i < address.length() ? address.charAt(i) : '.';
+            if (c == '.') {
+                if (value < 0 || ++octets > 4)
+                    throw new IllegalArgumentException("Malformed IPv4 address: " + address);
+                result = result << 8 | value;
+                value = -1;
+            } else if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255)
+                    throw new IllegalArgumentException("Malformed IPv4 address: " + address);
+            } else {
+                throw new IllegalArgumentException("Malformed IPv4 address: " + address);
+            }
+        }
+        if (octets != 4)
+            throw new IllegalArgumentException("Malformed IPv4 address: " + address);
+        return result;
+    }
+
+    /**
+     * Check whether a string is an address in dotted-decimal notation.
+     *
+     * @param address   the string to check
+     * @return          true if it is a valid IPv4 address
+     */
+    public static boolean isValid(String address) {
+        try {
+            pack(address);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Format a packed address in dotted-decimal notation.
+     *
+     * @param address   the packed address
+     * @return          the address as a string
+     */
+    public static String format(int address) {
+        return (address >>> 24) + "." + (address >>> 16 & 0xFF) + "." + (address >>> 8 & 0xFF) + "." + (address & 0xFF);
+    }
+
+    /**
+     * Pack an address and a port into a single key.
+     *
+     * @param address   the packed address
+     * @param port      the port
+     * @return          the key, with the address in the upper half
+     */
+    public static long key(int address, int port) {
+        return (long) address << 32 | port & 0xFFFFL;
+    }
+}
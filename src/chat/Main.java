@@ -1,9 +1,5 @@
 package chat;
 
-import protocol.Message;
-
-import java.net.InetAddress;
-import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 /**
@@ -17,13 +13,20 @@ public class Main {
     private static Logger LOGGER = Logging.setup(Logger.getLogger(Main.class.getName()));
 
     public static void main(String[] args) {
-        if (args.length == 1) {
+        if (args.length >= 1) {
             try {
                 Application.PORT = Integer.parseInt(args[0]);;
             } catch (Exception e) {
                 UserInterface.display("Invalid port provided. Use default port " + Application.PORT);
             }
         }
+        if (args.length >= 2) {
+            Discovery.Mode mode = Discovery.Mode.fromName(args[1]);
+            if (mode != null)
+                Discovery.setMode(mode);
+            else
+                UserInterface.display("Invalid discovery mode provided. Use default mode " + Discovery.getMode());
+        }
 
         try {
             // initialise the application
@@ -37,23 +40,23 @@ public class Main {
             // start listening to messages (in a background thread)
             MessageListener messageListener = new MessageListener();
 
-            Consumer<String> greet = (addr) -> {
-                try {
-                    InetAddress address = InetAddress.getByName(addr);
-                    Peer peer = new Peer(addr, Application.PORT);
-                    UDPMessageSender.getInstance().send(peer, new Message(Message.HELLO));
-                } catch (Exception e) {
-                    LOGGER.warning("Unable to say hello to " + addr + ": " + e.getMessage());
-                }
-            };
+            // save the known peers even when the application is killed
+            Runtime.getRuntime().addShutdownHook(new Thread(PeerCache::save));
 
             LOGGER.info("Checking for online peers..");
-            Application.getInstance().getAllAdresses().parallelStream().forEach(greet);
+            // the peers known in the previous run are the most likely to be online again
+            DiscoveryScheduler.prioritize(PeerCache.load());
+            DiscoveryScheduler.start();
+            FailureDetector.start();
 
             new UserInterface().run();
 
-            // clean-up before stopping the application
+            // clean-up before stopping the application, sending the goodbyes still waiting first
+            UDPMessageSender.getInstance().flush();
+            FailureDetector.stop();
+            DiscoveryScheduler.stop();
             messageListener.stop();
+            PeerCache.save();
         } catch (Exception e) {
             LOGGER.severe("Unknown exception: " + e.toString());
             e.printStackTrace();
@@ -0,0 +1,51 @@
+package chat;
+
+import protocol.Message;
+
+/**
+ * A handler for one type of message, registered with {@link MessageProcessor#register(String, MessageHandler)}.
+ * Handlers run on a worker thread by default. A handler that is cheap and never blocks may declare
+ * itself inline, and is then run directly on the thread that received the message.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public interface MessageHandler {
+
+    /**
+     * Handle a received message.
+     *
+     * @param msg           the received message
+     * @throws Exception    if the message cannot be handled
+     */
+    void handle(Message msg) throws Exception;
+
+    /**
+     * Check whether this handler may run on the thread that received the message.
+     *
+     * @return  true to skip the hand-over to a worker thread
+     */
+    default boolean isInline() {
+        return false;
+    }
+
+    /**
+     * Make a handler run on the thread that received the message.
+     *
+     * @param handler   the handler, which must be cheap and never block
+     * @return          the inline handler
+     */
+    static MessageHandler inline(MessageHandler handler) {
+        return new MessageHandler() {
+            @Override
+            public void handle(Message msg) throws Exception {
+                handler.handle(msg);
+            }
+
+            @Override
+            public boolean isInline() {
+                return true;
+            }
+        };
+    }
+}
@@ -1,13 +1,20 @@
 package chat;
 
 import protocol.Message;
+import protocol.MessageCodec;
 import protocol.TCPMessage;
 
 import java.io.*;
 import java.net.*;
-import java.util.Optional;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -51,6 +58,13 @@ interface IMessageListener extends Runnable {
 
 /**
  * This class is responsible for listening to incoming TCP messages.
+ * A single selector thread accepts connections and reads the message header of each one
+ * without blocking, so a slow or stalled sender never holds up the other incoming transfers.
+ * Only connections with a complete header are handed over to the worker threads, and the
+ * connections that do not complete their header in time are closed.
+ * A worker thread is started for each connection handed over, up to a limit beyond which the
+ * connections are refused, and a connection whose body stalls is closed after a timeout so that
+ * it cannot hold its worker forever.
  *
  * @author Khoa Le
  * @version 1.0
@@ -59,42 +73,178 @@ class TCPMessageListener implements IMessageListener {
 
     private static final Logger LOGGER = Logging.setup(Logger.getLogger(TCPMessageListener.class.getName()));
 
-    private static final ExecutorService EXECUTOR = Executors.newScheduledThreadPool(10);
+    // the most connections whose body is received at once, and how long an idle worker is kept
+    private static final int MAX_WORKERS = 256;
+    private static final long WORKER_KEEP_ALIVE = 60;
 
-    private ServerSocket serverSocket;
+    private static final ExecutorService EXECUTOR = new ThreadPoolExecutor(0, MAX_WORKERS,
+            WORKER_KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "tcp-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // message headers are short keywords, anything longer than this is garbage
+    private static final int MAX_HEADER_LENGTH = 256;
+
+    // how long a connection may take to send its header, and how often this is checked, in milliseconds
+    private static final long HEADER_TIMEOUT = 10_000;
+    private static final long SWEEP_INTERVAL = 1_000;
+
+    // how long the body of a connection may stall, in milliseconds; the sender of a delta may
+    // go quiet while it looks for matching blocks, see TCPMessageSender#sendDelta
+    private static final int BODY_TIMEOUT = 60_000;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
 
     @Override
     public void run() {
         try {
-            serverSocket = new ServerSocket(Application.PORT);
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(new InetSocketAddress(Application.PORT));
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
             LOGGER.info("Start listening to incoming TCP message");
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    Socket socket = serverSocket.accept();
-                    DataInputStream in = new DataInputStream(socket.getInputStream());
-                    String msgType = in.readUTF();
-
-                    EXECUTOR.execute(() -> {
-                        MessageProcessor.process(Optional.of(new TCPMessage(msgType, socket)));
-                    });
-                } catch (SocketException e) {
-                    // expected when closing socket
-                    LOGGER.warning(e.getMessage());
-                    break;
-                } catch (Exception e) {
-                    LOGGER.severe("Error listening to the message: " + e.getMessage());
-                    e.printStackTrace();
+
+            List<SelectionKey> completed = new ArrayList<>();
+            long nextSweep = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL);
+            while (running) {
+                selector.select(SWEEP_INTERVAL);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            accept();
+                        else if (key.isReadable() && readHeader(key))
+                            completed.add(key);
+                    } catch (IOException e) {
+                        LOGGER.warning("Dropping connection: " + e.getMessage());
+                        close(key);
+                    }
+                }
+
+                if (!completed.isEmpty()) {
+                    handOver(completed);
+                    completed.clear();
+                }
+
+                long now = System.nanoTime();
+                if (now - nextSweep >= 0) {
+                    closeStalled(now);
+                    nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL);
                 }
             }
         } catch (IOException e) {
             LOGGER.severe("Unable to establish the socket: " + e.getMessage());
         } finally {
-            if (serverSocket != null)
-                try {
-                    serverSocket.close();
-                } catch (IOException e) {
-                    LOGGER.warning("Error closing socket: " + e.getMessage());
-                }
+            closeAll();
+        }
+    }
+
+    /**
+     * Accept a pending connection and register it for reading its header.
+     *
+     * @throws IOException  if the connection could not be accepted
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new HeaderReader());
+    }
+
+    /**
+     * Read whatever is available of the message header of a connection.
+     *
+     * @param key           the selection key of the connection
+     * @return              true if the header is now complete
+     * @throws IOException  if the connection is broken or the header is malformed
+     */
+    private boolean readHeader(SelectionKey key) throws IOException {
+        HeaderReader reader = (HeaderReader) key.attachment();
+        return reader.read((SocketChannel) key.channel());
+    }
+
+    /**
+     * Close the connections that did not send their header in time.
+     *
+     * @param now   the current time in nanoseconds
+     */
+    private void closeStalled(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof HeaderReader && ((HeaderReader) attachment).isExpired(now)) {
+                LOGGER.warning("Dropping connection: no message header within " + HEADER_TIMEOUT + " ms");
+                close(key);
+            }
+        }
+    }
+
+    /**
+     * Hand the connections with a complete header over to the worker threads.
+     * The connections are switched back to blocking mode since the message body
+     * is consumed through regular streams by {@link MessageProcessor}, with a timeout
+     * on every read. The connections whose header has no handler, or that find every
+     * worker busy, are closed.
+     *
+     * @param keys          the selection keys of the completed connections
+     * @throws IOException  if the selector fails
+     */
+    private void handOver(List<SelectionKey> keys) throws IOException {
+        keys.forEach(SelectionKey::cancel);
+        // flush the cancelled keys so that the channels can be made blocking again
+        selector.selectNow();
+
+        for (SelectionKey key : keys) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            String msgType = ((HeaderReader) key.attachment()).getHeader();
+            try {
+                channel.configureBlocking(true);
+                channel.socket().setSoTimeout(BODY_TIMEOUT);
+                if (!MessageProcessor.dispatch(new TCPMessage(msgType, channel.socket()), EXECUTOR))
+                    close(key);
+            } catch (Exception e) {
+                LOGGER.severe("Error listening to the message: " + e.getMessage());
+                close(key);
+            }
+        }
+    }
+
+    /**
+     * Close the connection of a selection key.
+     *
+     * @param key   the selection key
+     */
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            LOGGER.warning("Error closing socket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Close the selector together with every connection it still holds.
+     */
+    private void closeAll() {
+        try {
+            if (selector != null) {
+                selector.keys().forEach(this::close);
+                selector.close();
+            }
+            if (serverChannel != null)
+                serverChannel.close();
+        } catch (IOException e) {
+            LOGGER.warning("Error closing socket: " + e.getMessage());
         }
     }
 
@@ -103,19 +253,84 @@ class TCPMessageListener implements IMessageListener {
      */
     @Override
     public void shutdown() {
+        running = false;
         EXECUTOR.shutdown();
-        Thread.currentThread().interrupt();
-        if (serverSocket != null)
-            try {
-                serverSocket.close();
-            } catch (IOException e) {
-                LOGGER.warning("Error closing socket: " + e.getMessage());
+        if (selector != null)
+            selector.wakeup();
+    }
+
+    /**
+     * Incrementally reads a message header written with {@link DataOutputStream#writeUTF(String)}.
+     * It never reads past the header so the rest of the stream is left intact for the processor.
+     */
+    private static class HeaderReader {
+
+        private final ByteBuffer length = ByteBuffer.allocate(2);
+        private ByteBuffer body;
+        private String header;
+
+        // when the connection was accepted, in nanoseconds
+        private final long acceptedAt = System.nanoTime();
+
+        /**
+         * Read the available bytes of the header from the channel.
+         *
+         * @param channel       the non-blocking channel
+         * @return              true if the header is complete
+         * @throws IOException  if the channel is closed or the header is malformed
+         */
+        boolean read(SocketChannel channel) throws IOException {
+            if (body == null) {
+                if (channel.read(length) == -1)
+                    throw new EOFException("Connection closed before the message header");
+                if (length.hasRemaining())
+                    return false;
+
+                int size = length.getShort(0) & 0xFFFF;
+                if (size > MAX_HEADER_LENGTH)
+                    throw new IOException("Message header is too long: " + size);
+                body = ByteBuffer.allocate(2 + size);
+                body.putShort((short) size);
             }
+
+            if (body.hasRemaining() && channel.read(body) == -1)
+                throw new EOFException("Connection closed before the message header");
+            if (body.hasRemaining())
+                return false;
+
+            header = new DataInputStream(new ByteArrayInputStream(body.array())).readUTF();
+            return true;
+        }
+
+        /**
+         * Check whether the header took too long to arrive.
+         *
+         * @param now   the current time in nanoseconds
+         * @return      true if the header is not complete after the timeout
+         */
+        boolean isExpired(long now) {
+            return header == null && now - acceptedAt > TimeUnit.MILLISECONDS.toNanos(HEADER_TIMEOUT);
+        }
+
+        /**
+         * Get the decoded header.
+         *
+         * @return  the message header, or null if it is not complete yet
+         */
+        String getHeader() {
+            return header;
+        }
     }
 }
 
 /**
  * This class is responsible for listening to incoming UDP messages.
+ * Every datagram is received into the same direct buffer and decoded on the listening thread
+ * before the next one is received, so nothing handed to the workers points into the buffer.
+ * The addresses of the senders are formatted once and then looked up in a small cache, so that
+ * receiving a datagram only allocates the message it carries and its hand-over to a worker.
+ * The messages are then handled on the worker lane of their sender, so the messages of a peer
+ * are handled in arrival order while different peers are handled in parallel.
  *
  * @author Khoa Le
  * @version 1.0
@@ -124,34 +339,71 @@ class UDPMessageListener implements IMessageListener {
 
     private static final Logger LOGGER = Logging.setup(Logger.getLogger(UDPMessageListener.class.getName()));
 
-    private static final ExecutorService EXECUTOR = Executors.newScheduledThreadPool(10);
+    // messages from one peer are handled in the order they arrive
+    private static final StripedExecutor EXECUTOR = new StripedExecutor("udp-worker");
+
+    // room for a full batch of frames or a fragment, which fill at most an Ethernet frame
+    private static final int BUFFER_SIZE = 1500;
+    private static final int RECEIVE_BUFFER_SIZE = 1 << 20;
+
+    // a direct buffer spares the copy from a temporary one on every receive
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    // the formatted addresses of the recent senders, by a hash of their packed address
+    private static final int SENDER_CACHE_SIZE = 256;
+    private final int[] senderAddresses = new int[SENDER_CACHE_SIZE];
+    private final String[] senderIPs = new String[SENDER_CACHE_SIZE];
 
-    DatagramSocket socket;
+    DatagramChannel channel;
 
     /**
      * Create a MessageListener object listening on a given socket.
      */
     public UDPMessageListener() throws IOException {
-        this.socket = new DatagramSocket(Application.PORT);
+        this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        this.channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        this.channel.bind(new InetSocketAddress(Application.PORT));
+        joinGroup();
+    }
+
+    /**
+     * Join the multicast group of the application, so that peers discovering or chatting by multicast
+     * reach this instance. Broadcasts are received without joining anything.
+     */
+    private void joinGroup() {
+        try {
+            InetAddress localhost = Application.getInstance().getLocalhost();
+            NetworkInterface networkInterface = localhost == null ? null : NetworkInterface.getByInetAddress(localhost);
+            if (networkInterface == null) {
+                LOGGER.warning("No network interface to join the multicast group on");
+                return;
+            }
+            this.channel.join(InetAddress.getByName(Discovery.MULTICAST_GROUP), networkInterface);
+            Multicast.setJoined(true);
+        } catch (IOException e) {
+            LOGGER.warning("Unable to join the multicast group: " + e.getMessage());
+        }
     }
 
     @Override
     public void run() {
         LOGGER.info("Start listening to incoming UDP message");
-        byte[] buffer = new byte[1024];
-        while (!Thread.currentThread().isInterrupted()) {
+        while (channel.isOpen()) {
             try {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-
-                EXECUTOR.execute(() -> {
-                    Optional<Message> message = Message.parse(new String(packet.getData(), 0, packet.getLength()));
-                    message.ifPresent(msg -> msg.setSrcIP(packet.getAddress().getHostAddress()));
-                    MessageProcessor.process(message);
-                });
-            } catch (SocketException e) {
+                buffer.clear();
+                InetSocketAddress src = (InetSocketAddress) channel.receive(buffer);
+                buffer.flip();
+                String ip = getIP(src);
+
+                if (MessageCodec.opcodeOf(buffer) == MessageCodec.BATCH) {
+                    for (ByteBuffer frame : Coalescer.unpack(buffer))
+                        receive(frame, src, ip);
+                } else {
+                    receive(buffer, src, ip);
+                }
+            } catch (ClosedChannelException e) {
                 // expected when closing socket
-                LOGGER.warning(e.getMessage());
+                LOGGER.warning("UDP listener closed");
                 break;
             } catch (Exception e) {
                 LOGGER.severe("Error listening to the message: " + e.getMessage());
@@ -160,14 +412,81 @@ class UDPMessageListener implements IMessageListener {
         }
     }
 
+    /**
+     * Get the address of a sender in dotted-decimal notation, formatting it only if it is not cached.
+     *
+     * @param src   the address of the sender
+     * @return      the IP address of the sender
+     */
+    private String getIP(InetSocketAddress src) {
+        // the hash code of an IPv4 address is its packed address
+        int address = src.getAddress().hashCode();
+        int slot = (address ^ address >>> 16) & (SENDER_CACHE_SIZE - 1);
+        String ip = senderIPs[slot];
+        if (ip == null || senderAddresses[slot] != address) {
+            ip = IPv4.format(address);
+            senderAddresses[slot] = address;
+            senderIPs[slot] = ip;
+        }
+        return ip;
+    }
+
+    /**
+     * Decode a received frame and dispatch it.
+     *
+     * @param frame the frame
+     * @param src   the address of the sender
+     * @param ip    the IP address of the sender
+     */
+    private static void receive(ByteBuffer frame, InetSocketAddress src, String ip) {
+        if (MessageCodec.opcodeOf(frame) == MessageCodec.FRAGMENT) {
+            // the whole frame goes on once its last fragment arrived
+            ByteBuffer whole = Fragmenter.reassemble(frame, src);
+            if (whole != null)
+                receive(whole, src, ip);
+            return;
+        }
+
+        // decoding is cheap, only the handling may be handed over to the workers
+        if (Reliability.isEnvelope(frame)) {
+            // the frames come out in order, and keep it on the lane of the sender
+            for (ByteBuffer inner : Reliability.receive(frame, src)) {
+                Message msg = decode(inner, ip);
+                if (msg != null)
+                    MessageProcessor.dispatch(msg, EXECUTOR);
+            }
+        } else {
+            Message msg = decode(frame, ip);
+            if (msg != null)
+                MessageProcessor.dispatch(msg, EXECUTOR);
+        }
+    }
+
+    /**
+     * Decode a received datagram.
+     *
+     * @param packet    the buffer holding the datagram
+     * @param ip        the IP address of the sender
+     * @return          the message, or null if the datagram is not a valid message
+     */
+    private static Message decode(ByteBuffer packet, String ip) {
+        Message msg = Message.parse(packet).orElse(null);
+        if (msg != null)
+            msg.setSrcIP(ip);
+        return msg;
+    }
+
     /**
      * Stop the listener
      */
     @Override
     public void shutdown() {
         EXECUTOR.shutdown();
-        Thread.currentThread().interrupt();
-        if (socket != null)
-            socket.close();
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException e) {
+            LOGGER.warning("Error closing socket: " + e.getMessage());
+        }
     }
 }
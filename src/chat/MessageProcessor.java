@@ -3,8 +3,9 @@ package chat;
 import protocol.Message;
 import protocol.TCPMessage;
 
-import java.io.*;
-import java.util.Optional;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 /**
@@ -19,6 +20,22 @@ public class MessageProcessor {
 
     private static final Logger LOGGER = Logging.setup(Logger.getLogger(MessageProcessor.class.getName()));
 
+    // the handler of each message type, indexed by opcode
+    private static final MessageHandler[] HANDLERS = new MessageHandler[256];
+
+    static {
+        // control messages are cheap enough to be handled on the receiving thread
+        register(Message.HELLO, MessageHandler.inline(MessageProcessor::processHelloMsg));
+        register(Message.HELLO_ACK, MessageHandler.inline(MessageProcessor::processHelloAckMsg));
+        register(Message.BYE, MessageHandler.inline(MessageProcessor::processByeMsg));
+        register(Message.HEARTBEAT, MessageHandler.inline(MessageProcessor::processHeartbeatMsg));
+        register(Message.CHAT, MessageProcessor::processChatMsg);
+        register(Message.CHAT_PRIV, MessageProcessor::processPrivateChatMsg);
+        register(Message.FILE, msg -> processFileMsg((TCPMessage) msg));
+        register(Message.FILE_PART, msg -> processFileMsg((TCPMessage) msg));
+        register(Message.FILE_DELTA, msg -> processFileDeltaMsg((TCPMessage) msg));
+    }
+
     /**
      * Get the singleton instance of this class.
      *
@@ -35,6 +52,7 @@ public class MessageProcessor {
 
     /**
      * Process the hello message.
+     * The greeting is not answered right away but together with the other newcomers, see {@link Greeter}.
      *
      * @param msg   the received message
      */
@@ -43,17 +61,23 @@ public class MessageProcessor {
         if (msg.getSrcIP().equals(Application.getInstance().getIP()))
             return;
 
+        // [stamp] [features], older versions send no features
+        String[] fields = msg.getData().split(Message.DELIMITER, 2);
         Peer peer = new Peer(msg.getSrcIP(), Application.PORT);
+        DiscoveryScheduler.seen(peer.getAddress());
         boolean isNewPeer = PeerManager.getInstance().add(peer);
+        PeerManager.getInstance().seen(peer, -1);
+        Features.advertised(msg.getSrcIP(), fields.length > 1 ? fields[1] : null);
+        FailureDetector.heard(peer);
         if (isNewPeer)
-            UserInterface.display(peer.toString() + " joined.");
+            Greeter.joined(peer);
 
-        // response to the greeting
-        UDPMessageSender.getInstance().send(peer, new Message(Message.HELLO_ACK));
+        Greeter.answer(peer, fields[0]);
     }
 
     /**
-     * Process the hello ack message.
+     * Process the hello ack message, which lists the peers known by the sender
+     * and the newcomers it answers.
      *
      * @param msg   the received message
      */
@@ -62,10 +86,31 @@ public class MessageProcessor {
         if (msg.getSrcIP().equals(Application.getInstance().getIP()))
             return;
 
+        // [stamp] [known peers] [answered newcomers] [features],
+        // older versions only echo the stamp
+        String[] fields = msg.getData().split(Message.DELIMITER, 4);
+        List<Peer> known = fields.length > 1 ? Greeter.decode(fields[1]) : Collections.emptyList();
+        List<Peer> answered = fields.length > 2 ? Greeter.decode(fields[2]) : Collections.emptyList();
+        Greeter.answered(answered);
+
+        Peer self = new Peer(Application.getInstance().getIP(), Application.PORT);
         Peer peer = new Peer(msg.getSrcIP(), Application.PORT);
+        DiscoveryScheduler.seen(peer.getAddress());
         boolean isNewPeer = PeerManager.getInstance().add(peer);
+        // the stamp is only ours to time if the answer is meant for this instance
+        int rtt = answered.isEmpty() || answered.contains(self) ? Discovery.roundTripTime(fields[0]) : -1;
+        PeerManager.getInstance().seen(peer, rtt);
+        Features.advertised(msg.getSrcIP(), fields.length > 3 ? fields[3] : null);
+        FailureDetector.heard(peer);
         if (isNewPeer)
-            UserInterface.display(peer.toString() + " joined.");
+            Greeter.joined(peer);
+
+        known.removeIf(listed -> listed.equals(self));
+        for (Peer listed : PeerManager.getInstance().add(known)) {
+            DiscoveryScheduler.seen(listed.getAddress());
+            FailureDetector.watch(listed);
+            Greeter.joined(listed);
+        }
     }
 
     /**
@@ -75,23 +120,53 @@ public class MessageProcessor {
      */
     private static void processByeMsg(Message msg) {
         Peer peer = new Peer(msg.getSrcIP(), Application.PORT);
+        FailureDetector.forget(peer);
+        Reliability.forget(peer);
+        Fragmenter.forget(peer.getAddress());
+        UDPMessageSender.getInstance().forget(peer);
         boolean removed = PeerManager.getInstance().remove(peer);
         if (removed)
             UserInterface.display(peer.toString() + " left.");
     }
 
+    /**
+     * Process a heartbeat, which also tells about a peer that was not known yet.
+     *
+     * @param msg   the received message
+     */
+    private static void processHeartbeatMsg(Message msg) {
+        // filter out message from self
+        if (msg.getSrcIP().equals(Application.getInstance().getIP()))
+            return;
+
+        Peer peer = new Peer(msg.getSrcIP(), Application.PORT);
+        DiscoveryScheduler.seen(peer.getAddress());
+        boolean isNewPeer = PeerManager.getInstance().add(peer);
+        PeerManager.getInstance().seen(peer, -1);
+        Features.advertised(msg.getSrcIP(), msg.getData());
+        FailureDetector.heartbeat(peer);
+        if (isNewPeer)
+            Greeter.joined(peer);
+    }
+
     /**
      * Process a chat message.
      *
      * @param msg   the received message
      */
     private static void processChatMsg(Message msg) {
+        // filter out message from self, which comes back when sent to the multicast group
+        if (msg.getSrcIP().equals(Application.getInstance().getIP()))
+            return;
+
         // TODO for a sudden in-between chat message like this, do we want to skip them?
         Peer peer = new Peer(msg.getSrcIP(), Application.PORT);
         if (!PeerManager.getInstance().contains(peer)) {
             PeerManager.getInstance().add(peer);
-            UserInterface.display(peer.toString() + " joined.");
+            Greeter.joined(peer);
         }
+        PeerManager.getInstance().seen(peer, -1);
+        FailureDetector.heard(peer);
 
         UserInterface.display(peer.toString() + ": " + msg.getData());
     }
@@ -106,74 +181,98 @@ public class MessageProcessor {
         Peer peer = new Peer(msg.getSrcIP(), Application.PORT);
         if (!PeerManager.getInstance().contains(peer)) {
             PeerManager.getInstance().add(peer);
-            UserInterface.display(peer.toString() + " joined.");
+            Greeter.joined(peer);
         }
+        PeerManager.getInstance().seen(peer, -1);
+        FailureDetector.heard(peer);
 
         UserInterface.display(peer.toString() + "[PRIV]: " + msg.getData());
     }
 
     /**
      * Process a file sharing message.
+     * The message may be one of several connections carrying chunks of the same file.
      *
      * @param msg   the received message
      */
     private static void processFileMsg(TCPMessage msg) throws Exception {
-        DataInputStream in = new DataInputStream(msg.getSocket().getInputStream());
-        String filename = in.readUTF();
-        long filesize = in.readLong();
-
-        // prepare to write received data to file using a buffer
-        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(filename));
-        byte[] buffer = new byte[1024];
-        int bytesRead;
-
-        // keep reading from the input stream for the exact file size
-        while (filesize > 0) {
-            bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, filesize));
-            if (bytesRead == -1)
-                break;
-            out.write(buffer, 0, bytesRead);
-            filesize -= bytesRead;
-        }
+        FileReceiver.receive(msg);
+    }
 
-        // clean up
-        out.flush();
-        UserInterface.display("Received file " + filename + " from " + msg.getSrcIP());
-        in.close();
-        out.close();
+    /**
+     * Process a file sharing message that carries a delta against the local copy of the file.
+     *
+     * @param msg   the received message
+     */
+    private static void processFileDeltaMsg(TCPMessage msg) throws Exception {
+        FileReceiver.receiveDelta(msg);
+    }
 
-        if (Security.isEncryptionEnabled())
-            Security.decryptFile(filename);
+    /**
+     * Register the handler of a message type, replacing the previous one.
+     *
+     * @param header    the message type
+     * @param handler   the handler of the messages of this type
+     */
+    public static void register(String header, MessageHandler handler) {
+        int opcode = Message.opcodeOf(header);
+        if (opcode == Message.NO_OPCODE)
+            throw new IllegalArgumentException("Unknown message type: " + header);
+        HANDLERS[opcode] = handler;
     }
 
     /**
-     * Process a received message.
+     * Process a received message, either right away if its handler is inline
+     * or on a worker thread of the given executor.
      *
-     * @param msg   the received message
+     * @param msg       the received message
+     * @param executor  the executor of the handlers that may not run inline
+     * @return          false if no handler is registered for the message type
      */
-    public static void process(Optional<Message> msg) {
+    public static boolean dispatch(Message msg, Executor executor) {
+        MessageHandler handler = HANDLERS[msg.getOpcode()];
+        if (handler == null) {
+            LOGGER.warning("No handler for message type " + msg.getHeader());
+            return false;
+        }
+        if (handler.isInline())
+            process(handler, msg);
+        else
+            executor.execute(() -> process(handler, msg));
+        return true;
+    }
+
+    /**
+     * Process a received message in order with the other messages from the same peer.
+     * The handler runs on the lane of the sender, or right away if it is inline and
+     * the lane has nothing left to run, so it cannot overtake an earlier message.
+     * All the messages must be dispatched from the same thread.
+     *
+     * @param msg       the received message
+     * @param executor  the executor whose lanes are keyed by the address of the sender
+     */
+    public static void dispatch(Message msg, StripedExecutor executor) {
+        MessageHandler handler = HANDLERS[msg.getOpcode()];
+        if (handler == null) {
+            LOGGER.warning("No handler for message type " + msg.getHeader());
+            return;
+        }
+        StripedExecutor.Lane lane = executor.lane(msg.getSrcIP());
+        if (handler.isInline() && lane.isIdle())
+            process(handler, msg);
+        else
+            lane.execute(() -> process(handler, msg));
+    }
+
+    /**
+     * Run the handler of a message.
+     *
+     * @param handler   the handler
+     * @param msg       the received message
+     */
+    private static void process(MessageHandler handler, Message msg) {
         try {
-            switch (msg.map(Message::getHeader).orElse(null)) {
-                case Message.HELLO:
-                    processHelloMsg(msg.get());
-                    break;
-                case Message.HELLO_ACK:
-                    processHelloAckMsg(msg.get());
-                    break;
-                case Message.BYE:
-                    processByeMsg(msg.get());
-                    break;
-                case Message.CHAT:
-                    processChatMsg(msg.get());
-                    break;
-                case Message.CHAT_PRIV:
-                    processPrivateChatMsg(msg.get());
-                    break;
-                case Message.FILE:
-                    processFileMsg((TCPMessage) msg.get());
-                default:
-                    break;
-            }
+            handler.handle(msg);
         } catch (Exception e) {
             LOGGER.severe("Error while processing message: " + e.getMessage());
             e.printStackTrace();
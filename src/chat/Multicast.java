@@ -0,0 +1,101 @@
+package chat;
+
+import protocol.Message;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * This class provides the multicast transport of public chat messages.
+ * Every instance joins the multicast group of the application, so a public message can be sent
+ * once to the group instead of once to every peer. It is optional, as some networks do not route
+ * multicast, and the messages are unicast to every peer whenever multicast is not available.
+ * Every instance advertises whether it joined the group among its {@link Features}, and the peers
+ * that did not, including those running older versions, still get the messages by unicast.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class Multicast {
+
+    private static final Logger LOGGER = Logging.setup(Logger.getLogger(Multicast.class.getName()));
+
+    private static volatile boolean MULTICAST = false;
+
+    // whether this instance is a member of the group, so its own network supports multicast
+    private static volatile boolean JOINED = false;
+
+    /**
+     * Check if public chat by multicast is enabled or not.
+     *
+     * @return  true if multicast is enabled
+     */
+    public static boolean isMulticastEnabled() {
+        return MULTICAST;
+    }
+
+    /**
+     * Toggle public chat by multicast.
+     */
+    public static void toggleMulticast() {
+        MULTICAST = !MULTICAST;
+    }
+
+    /**
+     * Record whether this instance joined the multicast group.
+     *
+     * @param joined    true if the group was joined
+     */
+    public static void setJoined(boolean joined) {
+        JOINED = joined;
+    }
+
+    /**
+     * Check whether this instance joined the multicast group.
+     *
+     * @return  true if the group was joined
+     */
+    public static boolean isJoined() {
+        return JOINED;
+    }
+
+    /**
+     * Check whether public chat messages go to the multicast group.
+     * The group does not acknowledge anything, so reliable delivery takes precedence.
+     *
+     * @return  true if multicast is enabled, the group was joined and reliable delivery is disabled
+     */
+    public static boolean isAvailable() {
+        return MULTICAST && JOINED && !Reliability.isReliabilityEnabled();
+    }
+
+    /**
+     * Send a public chat message to every peer, with a single datagram to the multicast group
+     * if possible, else with a datagram to each peer. The peers that are not known to be members
+     * of the group get a datagram of their own in any case.
+     *
+     * @param msg   the message to send
+     */
+    public static void sendToAll(Message msg) {
+        List<Peer> peers = PeerManager.getInstance().getAllPeers();
+        if (isAvailable()) {
+            try {
+                UDPMessageSender.getInstance().send(
+                        InetAddress.getByName(Discovery.MULTICAST_GROUP), Application.PORT, msg);
+                List<Peer> others = new ArrayList<>();
+                for (Peer peer : peers) {
+                    if ((peer.getFeatures() & Features.MULTICAST) == 0)
+                        others.add(peer);
+                }
+                peers = others;
+            } catch (IOException e) {
+                LOGGER.warning("Unable to send to the multicast group, falling back to unicast: " + e.getMessage());
+            }
+        }
+        if (!peers.isEmpty())
+            UDPMessageSender.getInstance().send(peers, msg);
+    }
+}
@@ -1,5 +1,9 @@
 package chat;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
 /**
  * A representation of a peer within the network.
  *
@@ -8,42 +12,78 @@ package chat;
  */
 public class Peer {
 
+    private final int address;
+    private final int port;
+
+    // the address in dotted-decimal notation, formatted on first use
     private String ipAddress;
-    private int port;
+
+    // the address to send datagrams to, resolved on first use
+    private InetSocketAddress socketAddress;
+
+    // when the peer was last heard from, in milliseconds since the epoch, 0 if never
+    private volatile long lastSeen;
+
+    // the smoothed round-trip time to the peer in microseconds, -1 if unknown
+    private volatile int rtt = -1;
+
+    // the features the peer advertised, see Features
+    private volatile int features;
 
     /**
      * Construct a peer instance.
      *
      * @param ipAddress the peer's IP address
      * @param port      the port
+     * @throws IllegalArgumentException if the address is not a valid IPv4 address
      */
     public Peer(String ipAddress, int port) {
+        this(IPv4.pack(ipAddress), port);
         this.ipAddress = ipAddress;
+    }
+
+    /**
+     * Construct a peer instance from a packed address.
+     *
+     * @param address   the peer's IP address, packed
+     * @param port      the port
+     */
+    public Peer(int address, int port) {
+        this.address = address;
         this.port = port;
     }
 
     @Override
     public int hashCode() {
-        int result = 1;
-        int factor = 10;
-        for (char c : this.ipAddress.toCharArray()) {
-            result += ((int) c) * factor;
-            factor *= 10;
-        }
-        return result;
+        return Long.hashCode(getKey() * 0x9E3779B97F4A7C15L);
     }
 
     @Override
     public boolean equals(Object obj) {
         if (this == obj)
             return true;
+        if (!(obj instanceof Peer))
+            return false;
+        Peer other = (Peer) obj;
+        return this.address == other.address && this.port == other.port;
+    }
 
-        if (obj != null && obj.getClass() == Peer.class) {
-            if (hashCode() == obj.hashCode())
-                return true;
-        }
+    /**
+     * Get IP address of this peer packed into an int.
+     *
+     * @return  the packed IP address
+     */
+    public int getAddress() {
+        return this.address;
+    }
 
-        return false;
+    /**
+     * Get the key identifying this peer, its address and port packed together.
+     *
+     * @return  the key
+     */
+    public long getKey() {
+        return IPv4.key(this.address, this.port);
     }
 
     /**
@@ -52,9 +92,30 @@ public class Peer {
      * @return  the IP address as a string
      */
     public String getIPAddress() {
+        if (this.ipAddress == null)
+            this.ipAddress = IPv4.format(this.address);
         return this.ipAddress;
     }
 
+    /**
+     * Get the socket address of this peer, to send datagrams to.
+     * It is built from the packed address, so no name is ever looked up.
+     *
+     * @return  the socket address
+     */
+    public InetSocketAddress getSocketAddress() {
+        if (this.socketAddress == null) {
+            byte[] bytes = {(byte) (this.address >>> 24), (byte) (this.address >>> 16),
+                    (byte) (this.address >>> 8), (byte) this.address};
+            try {
+                this.socketAddress = new InetSocketAddress(InetAddress.getByAddress(bytes), this.port);
+            } catch (UnknownHostException e) {
+                throw new AssertionError(e); // only thrown for an address of illegal length
+            }
+        }
+        return this.socketAddress;
+    }
+
     /**
      * Get the port of the peer.
      *
@@ -64,12 +125,66 @@ public class Peer {
         return this.port;
     }
 
+    /**
+     * Get when the peer was last heard from.
+     *
+     * @return  the time in milliseconds since the epoch, 0 if never
+     */
+    public long getLastSeen() {
+        return this.lastSeen;
+    }
+
+    /**
+     * Set when the peer was last heard from.
+     *
+     * @param lastSeen  the time in milliseconds since the epoch
+     */
+    public void setLastSeen(long lastSeen) {
+        this.lastSeen = lastSeen;
+    }
+
+    /**
+     * Get the smoothed round-trip time to the peer.
+     *
+     * @return  the round-trip time in microseconds, -1 if unknown
+     */
+    public int getRtt() {
+        return this.rtt;
+    }
+
+    /**
+     * Set the smoothed round-trip time to the peer.
+     *
+     * @param rtt   the round-trip time in microseconds, -1 if unknown
+     */
+    public void setRtt(int rtt) {
+        this.rtt = rtt;
+    }
+
+    /**
+     * Get the features the peer advertised.
+     *
+     * @return  the features, as bits of {@link Features}
+     */
+    public int getFeatures() {
+        return this.features;
+    }
+
+    /**
+     * Set the features the peer advertised.
+     *
+     * @param features  the features, as bits of {@link Features}
+     */
+    public void setFeatures(int features) {
+        this.features = features;
+    }
+
     /**
      * A string represents this object.
      *
      * @return  a representative string
      */
     public String toString() {
-        return "[" + this.ipAddress + ":" + this.port + "]";
+        return "[" + getIPAddress() + ":" + this.port + "]";
     }
 }
@@ -0,0 +1,86 @@
+package chat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A dense, thread-safe set of the addresses within a range, one bit per address.
+ * A /16 network takes 8 KB, far less than a hash table of the same peers.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class PeerBitmap {
+
+    private final int base;
+    private final int size;
+    private final AtomicLongArray bits;
+
+    /**
+     * Create an empty set for a range of addresses.
+     *
+     * @param base  the first address of the range, packed
+     * @param size  the number of addresses in the range
+     */
+    public PeerBitmap(int base, int size) {
+        this.base = base;
+        this.size = size;
+        this.bits = new AtomicLongArray((size + 63) >>> 6);
+    }
+
+    /**
+     * Check whether an address lies within the range of this set.
+     *
+     * @param address   the packed address
+     * @return          true if the address is covered
+     */
+    public boolean covers(int address) {
+        return Integer.toUnsignedLong(address - this.base) < this.size;
+    }
+
+    /**
+     * Check whether an address is in the set.
+     *
+     * @param address   the packed address, which must be covered
+     * @return          true if the address is in the set
+     */
+    public boolean contains(int address) {
+        int index = address - this.base;
+        return (this.bits.get(index >>> 6) & 1L << index) != 0;
+    }
+
+    /**
+     * Add an address to the set.
+     *
+     * @param address   the packed address, which must be covered
+     * @return          true if the address was not in the set yet
+     */
+    public boolean add(int address) {
+        int index = address - this.base;
+        long mask = 1L << index;
+        long word;
+        do {
+            word = this.bits.get(index >>> 6);
+            if ((word & mask) != 0)
+                return false;
+        } while (!this.bits.compareAndSet(index >>> 6, word, word | mask));
+        return true;
+    }
+
+    /**
+     * Remove an address from the set.
+     *
+     * @param address   the packed address, which must be covered
+     * @return          true if the address was in the set
+     */
+    public boolean remove(int address) {
+        int index = address - this.base;
+        long mask = 1L << index;
+        long word;
+        do {
+            word = this.bits.get(index >>> 6);
+            if ((word & mask) == 0)
+                return false;
+        } while (!this.bits.compareAndSet(index >>> 6, word, word & ~mask));
+        return true;
+    }
+}
@@ -0,0 +1,98 @@
+package chat;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * A small on-disk cache of the peers known in previous runs of the application.
+ * It is loaded at startup so that those peers are greeted before anything else,
+ * and saved on exit with the peers known by then.
+ * The file holds a count followed by one [address][port][last seen][rtt] record per peer.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class PeerCache {
+
+    private static final Logger LOGGER = Logging.setup(Logger.getLogger(PeerCache.class.getName()));
+
+    public static final String CACHE_FILE = "peers.cache";
+
+    // peers not heard from for this long are forgotten
+    private static final long MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    // the most peers kept in the cache, the most recently seen ones
+    private static final int MAX_PEERS = 4096;
+
+    // the peers loaded at startup, kept so that the ones offline during this run are not forgotten
+    private static final Map<Long, Peer> LOADED = new HashMap<>();
+
+    /**
+     * Load the cached peers.
+     *
+     * @return  the cached peers, the most recently seen first
+     */
+    public static synchronized List<Peer> load() {
+        File file = new File(CACHE_FILE);
+        if (!file.isFile())
+            return Collections.emptyList();
+
+        List<Peer> peers = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Peer peer = new Peer(in.readInt(), in.readUnsignedShort());
+                peer.setLastSeen(in.readLong());
+                peer.setRtt(in.readInt());
+                if (now - peer.getLastSeen() < MAX_AGE) {
+                    peers.add(peer);
+                    LOADED.put(peer.getKey(), peer);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Unable to read the peer cache: " + e.getMessage());
+        }
+        peers.sort(Comparator.comparingLong(Peer::getLastSeen).reversed());
+        return peers;
+    }
+
+    /**
+     * Save the peers known now, together with the cached peers that have not been seen in this run.
+     * The cache is replaced atomically, so an interrupted save leaves the previous one intact.
+     */
+    public static synchronized void save() {
+        Map<Long, Peer> peers = new HashMap<>(LOADED);
+        for (Peer peer : PeerManager.getInstance().getAllPeers()) {
+            if (peer.getLastSeen() > 0)
+                peers.put(peer.getKey(), peer);
+        }
+        List<Peer> recent = new ArrayList<>(peers.values());
+        recent.sort(Comparator.comparingLong(Peer::getLastSeen).reversed());
+        if (recent.isEmpty())
+            return; // nothing learnt, e.g. the application failed to start, so keep the cache as it is
+        if (recent.size() > MAX_PEERS)
+            recent = recent.subList(0, MAX_PEERS);
+
+        File file = new File(CACHE_FILE);
+        File temp = new File(CACHE_FILE + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(recent.size());
+                for (Peer peer : recent) {
+                    out.writeInt(peer.getAddress());
+                    out.writeShort(peer.getPort());
+                    out.writeLong(peer.getLastSeen());
+                    out.writeInt(peer.getRtt());
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warning("Unable to save the peer cache: " + e.getMessage());
+        }
+    }
+}
@@ -1,12 +1,21 @@
 package chat;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A manager class that takes care of all the known peers within the network.
+ * Peers are indexed by their address and port packed into a long, and the peers of the
+ * local subnet are also tracked in a bitmap, so lookups are constant time even with tens
+ * of thousands of peers. The bitmap is updated together with the map, but only its negative
+ * answers are taken as they are: a peer it holds is confirmed with the map, so a lookup never
+ * reports a peer that is being removed. Peers are listed from a snapshot that is only rebuilt
+ * after a change.
  *
  * @author Khoa Le
  * @version 1.0
@@ -15,7 +24,17 @@ public class PeerManager {
 
     private static final PeerManager INSTANCE = new PeerManager();
 
-    private Set<Peer> peers;
+    // the largest subnet tracked in a bitmap, a /16
+    private static final int MAX_BITMAP_SIZE = 1 << 16;
+
+    private final ConcurrentMap<Long, Peer> peers = new ConcurrentHashMap<>();
+
+    // the peers of the local subnet on the application port, null if the subnet is unknown or too large
+    private volatile PeerBitmap localPeers;
+
+    // bumped on every change, so that a stale snapshot can be told apart
+    private final AtomicInteger version = new AtomicInteger();
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.emptyList());
 
     public static PeerManager getInstance() {
         return INSTANCE;
@@ -25,7 +44,33 @@ public class PeerManager {
      * Construct an object of this class.
      */
     private PeerManager() {
-        this.peers = new HashSet<>();
+    }
+
+    /**
+     * Set the local subnet, whose peers are tracked in a bitmap.
+     * Peers already known are carried over.
+     *
+     * @param network   the network address of the subnet, packed
+     * @param prefix    the length of the network prefix
+     */
+    public void setLocalSubnet(int network, int prefix) {
+        long size = 1L << (32 - prefix);
+        if (prefix < 0 || prefix > 32 || size > MAX_BITMAP_SIZE) {
+            this.localPeers = null;
+            return;
+        }
+        PeerBitmap bitmap = new PeerBitmap(network, (int) size);
+        for (Peer peer : this.peers.values()) {
+            if (isTracked(bitmap, peer))
+                bitmap.add(peer.getAddress());
+        }
+        this.localPeers = bitmap;
+
+        // the peers added meanwhile went to the previous bitmap
+        for (Peer peer : this.peers.values()) {
+            if (isTracked(bitmap, peer))
+                bitmap.add(peer.getAddress());
+        }
     }
 
     /**
@@ -35,17 +80,34 @@ public class PeerManager {
      * @return      true if the peer is added successfully
      */
     public boolean add(Peer peer) {
-        return this.peers.add(peer);
+        // the bitmap is updated under the lock of the entry, so it agrees with the map
+        boolean[] added = new boolean[1];
+        this.peers.computeIfAbsent(peer.getKey(), key -> {
+            PeerBitmap bitmap = this.localPeers;
+            if (isTracked(bitmap, peer))
+                bitmap.add(peer.getAddress());
+            added[0] = true;
+            return peer;
+        });
+        if (!added[0])
+            return false;
+        this.version.incrementAndGet();
+        return true;
     }
 
     /**
      * Add multiple peers to the list.
      *
      * @param peers the peers to add
-     * @return      true if new peers are added successfully
+     * @return      the peers that were not known yet
      */
-    public boolean add(List<Peer> peers) {
-        return this.peers.addAll(peers);
+    public List<Peer> add(List<Peer> peers) {
+        List<Peer> added = new ArrayList<>();
+        for (Peer peer : peers) {
+            if (add(peer))
+                added.add(peer);
+        }
+        return added;
     }
 
     /**
@@ -55,19 +117,48 @@ public class PeerManager {
      * @return      true if the peer is removed
      */
     public boolean remove(Peer peer) {
-        return this.peers.remove(peer);
+        boolean[] removed = new boolean[1];
+        this.peers.computeIfPresent(peer.getKey(), (key, known) -> {
+            PeerBitmap bitmap = this.localPeers;
+            if (isTracked(bitmap, known))
+                bitmap.remove(known.getAddress());
+            removed[0] = true;
+            return null;
+        });
+        if (!removed[0])
+            return false;
+        this.version.incrementAndGet();
+        return true;
     }
 
     /**
-     * Find a peer given its IP address.
+     * Record that a known peer was heard from just now.
+     *
+     * @param peer  the peer
+     * @param rtt   a new sample of the round-trip time in microseconds, or -1 if there is none
+     */
+    public void seen(Peer peer, int rtt) {
+        Peer known = this.peers.get(peer.getKey());
+        if (known == null)
+            return;
+        known.setLastSeen(System.currentTimeMillis());
+        if (rtt >= 0) {
+            // smoothed like the round-trip time of TCP, giving 1/8 weight to the new sample
+            int smoothed = known.getRtt();
+            known.setRtt(smoothed < 0 ? rtt : smoothed + (rtt - smoothed) / 8);
+        }
+    }
+
+    /**
+     * Find a peer given its IP address, on the application port.
      *
      * @param ip    the IP address to find
      * @return      the peer instance if exists, else null
      */
     public Peer get(String ip) {
-        return this.peers.stream()
-                .filter(peer -> peer.getIPAddress().equals(ip))
-                .findAny().orElse(null);
+        if (!IPv4.isValid(ip))
+            return null;
+        return this.peers.get(IPv4.key(IPv4.pack(ip), Application.PORT));
     }
 
     /**
@@ -76,15 +167,75 @@ public class PeerManager {
      * @param peer  the peer to check
      */
     public boolean contains(Peer peer) {
-        return this.peers.contains(peer);
+        return contains(peer.getAddress(), peer.getPort());
+    }
+
+    /**
+     * Check whether the peer at an address and port is already in the list.
+     *
+     * @param address   the packed address of the peer
+     * @param port      the port of the peer
+     * @return          true if the peer is known
+     */
+    public boolean contains(int address, int port) {
+        // the bitmap rules out the unknown addresses of the subnet without hashing
+        PeerBitmap bitmap = this.localPeers;
+        if (bitmap != null && port == Application.PORT && bitmap.covers(address) && !bitmap.contains(address))
+            return false;
+        return this.peers.containsKey(IPv4.key(address, port));
+    }
+
+    /**
+     * Get the number of known peers.
+     *
+     * @return  the number of peers
+     */
+    public int size() {
+        return this.peers.size();
     }
 
     /**
      * Retrieve all peers.
+     * The list is a read-only snapshot shared between callers, so sending to every peer
+     * does not copy the peers each time.
      *
      * @return      all connected peers
      */
     public List<Peer> getAllPeers() {
-        return new ArrayList<>(this.peers);
+        Snapshot current = this.snapshot;
+        int latest = this.version.get();
+        if (current.version == latest)
+            return current.peers;
+
+        // a change made while copying bumps the version again, so the copy is never taken as current
+        Peer[] copy = this.peers.values().toArray(new Peer[0]);
+        current = new Snapshot(latest, Collections.unmodifiableList(Arrays.asList(copy)));
+        this.snapshot = current;
+        return current.peers;
+    }
+
+    /**
+     * Check whether a peer is tracked in the bitmap of the local subnet.
+     *
+     * @param bitmap    the bitmap, possibly null
+     * @param peer      the peer
+     * @return          true if the bitmap tracks this peer
+     */
+    private static boolean isTracked(PeerBitmap bitmap, Peer peer) {
+        return bitmap != null && peer.getPort() == Application.PORT && bitmap.covers(peer.getAddress());
+    }
+
+    /**
+     * The list of peers as of a version of the registry.
+     */
+    private static class Snapshot {
+
+        private final int version;
+        private final List<Peer> peers;
+
+        Snapshot(int version, List<Peer> peers) {
+            this.version = version;
+            this.peers = peers;
+        }
     }
 }
@@ -0,0 +1,428 @@
+package chat;
+
+import protocol.Message;
+import protocol.MessageCodec;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * This class provides the optional reliable delivery of chat messages over UDP.
+ * A reliable frame is wrapped in a {@link MessageCodec#RELIABLE} envelope carrying a sequence
+ * number per peer, and kept until the peer acknowledges it. The receiver delivers the frames of
+ * a peer in order, holding back those that arrive ahead of a missing one and dropping duplicates,
+ * and answers every envelope with a {@link MessageCodec#ACK} that tells the next sequence number
+ * it expects and which of the following ones it holds already, so only the missing frames are
+ * sent again. A frame is sent again as soon as enough later ones are acknowledged, or else when
+ * its timer expires, the timeout being computed from the measured round-trip time as in TCP.
+ * The envelopes are laid out as follows:
+ * <pre>
+ *     reliable: [session: 4 bytes][sequence: 4 bytes][frame]
+ *     ack:      [session: 4 bytes][next expected sequence: 4 bytes][received after it: 8 bytes]
+ * </pre>
+ * The session is picked at random for each peer, so the receiver starts over when the sender
+ * restarts or gives up on a frame. Receiving is always on, only sending reliably is optional.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc6298">Computing TCP's retransmission timer</a>
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class Reliability {
+
+    private static final Logger LOGGER = Logging.setup(Logger.getLogger(Reliability.class.getName()));
+
+    private static final int ENVELOPE_BODY_LENGTH = 8;
+    private static final int ACK_BODY_LENGTH = 16;
+
+    // the most frames in flight to a peer, as many as the bits of an ack plus the expected one
+    private static final int WINDOW_SIZE = 64;
+    private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+    // bounds of the retransmission timeout in milliseconds, and the one before any measurement
+    private static final long MIN_RTO = 100;
+    private static final long MAX_RTO = 10_000;
+    private static final long INITIAL_RTO = 500;
+
+    // how many times in a row the timer of a frame expires before giving up on the peer
+    private static final int MAX_TIMEOUTS = 8;
+
+    // how many later frames must be acknowledged before a missing one is taken as lost
+    private static final int REORDERING_THRESHOLD = 3;
+
+    private static final HashedTimingWheel WHEEL = new HashedTimingWheel("reliability", 10, TimeUnit.MILLISECONDS, 512);
+
+    private static volatile boolean RELIABILITY = false;
+
+    // the state of the frames sent to and received from each peer, by key
+    private static final Map<Long, Outbound> OUTBOUND = new ConcurrentHashMap<>();
+    private static final Map<Long, Inbound> INBOUND = new ConcurrentHashMap<>();
+
+    /**
+     * Check if reliable delivery is enabled or not.
+     *
+     * @return  true if reliable delivery is enabled
+     */
+    public static boolean isReliabilityEnabled() {
+        return RELIABILITY;
+    }
+
+    /**
+     * Toggle the reliable delivery of chat messages.
+     */
+    public static void toggleReliability() {
+        RELIABILITY = !RELIABILITY;
+    }
+
+    /**
+     * Check whether a message is to be sent reliably.
+     *
+     * @param msg   the message
+     * @return      true if reliable delivery is enabled and the message is a chat message
+     */
+    public static boolean isReliable(Message msg) {
+        if (!RELIABILITY)
+            return false;
+        String header = msg.getHeader();
+        return Message.CHAT.equals(header) || Message.CHAT_PRIV.equals(header);
+    }
+
+    /**
+     * Check whether a datagram is an envelope of this layer.
+     *
+     * @param packet    the received datagram
+     * @return          true if it is a reliable frame or an ack
+     */
+    public static boolean isEnvelope(ByteBuffer packet) {
+        int opcode = MessageCodec.opcodeOf(packet);
+        return opcode == MessageCodec.RELIABLE || opcode == MessageCodec.ACK;
+    }
+
+    /**
+     * Send a frame reliably to a peer.
+     * If too many frames are in flight to the peer, it is sent once some of them are acknowledged.
+     *
+     * @param dst   the destination peer
+     * @param frame the encoded frame, from its position to its limit
+     */
+    public static void send(Peer dst, ByteBuffer frame) {
+        if (frame.remaining() > MessageCodec.MAX_BODY_LENGTH - ENVELOPE_BODY_LENGTH) {
+            LOGGER.warning("Frame too large to send reliably to " + dst);
+            return;
+        }
+        OUTBOUND.computeIfAbsent(dst.getKey(), key -> new Outbound(dst)).send(frame);
+    }
+
+    /**
+     * Receive an envelope, returning the frames it makes deliverable in order.
+     * The frames may point into the datagram, so they must be decoded before it is reused.
+     * All the envelopes must be received from the same thread.
+     *
+     * @param packet    the received datagram
+     * @param src       the address of the sender
+     * @return          the frames to decode, in order, possibly none
+     */
+    public static List<ByteBuffer> receive(ByteBuffer packet, InetSocketAddress src) {
+        int start = packet.position();
+        int opcode = MessageCodec.opcodeOf(packet);
+        int length = packet.getShort(start + 4) & 0xFFFF;
+        int body = start + MessageCodec.HEADER_LENGTH;
+
+        Peer peer = new Peer(ByteBuffer.wrap(src.getAddress().getAddress()).getInt(), Application.PORT);
+        if (opcode == MessageCodec.ACK && length >= ACK_BODY_LENGTH) {
+            Outbound outbound = OUTBOUND.get(peer.getKey());
+            if (outbound != null)
+                outbound.acknowledge(packet.getInt(body), packet.getInt(body + 4), packet.getLong(body + 8));
+        } else if (opcode == MessageCodec.RELIABLE && length > ENVELOPE_BODY_LENGTH) {
+            ByteBuffer frame = packet.duplicate();
+            frame.limit(body + length).position(body + ENVELOPE_BODY_LENGTH);
+            return INBOUND.computeIfAbsent(peer.getKey(), key -> new Inbound(peer))
+                    .receive(packet.getInt(body), packet.getInt(body + 4), frame.slice());
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Forget the state of a peer that left, giving up on the frames not acknowledged yet.
+     *
+     * @param peer  the peer
+     */
+    public static void forget(Peer peer) {
+        Outbound outbound = OUTBOUND.remove(peer.getKey());
+        if (outbound != null)
+            outbound.close();
+        INBOUND.remove(peer.getKey());
+    }
+
+    /**
+     * A frame sent and not acknowledged yet.
+     */
+    private static class Pending {
+
+        private final int sequence;
+        private final byte[] envelope;
+        private long sentAt;
+        private int transmissions;
+        private int timeouts;
+        private HashedTimingWheel.Timeout timer;
+
+        Pending(int sequence, byte[] envelope) {
+            this.sequence = sequence;
+            this.envelope = envelope;
+        }
+    }
+
+    /**
+     * The frames sent to a peer.
+     */
+    private static class Outbound {
+
+        private final Peer peer;
+        private final int session = ThreadLocalRandom.current().nextInt();
+
+        // the frames in flight, by sequence number modulo the window size, from the oldest
+        // not acknowledged up to the limit; the frames past the limit wait in the backlog
+        private final Pending[] window = new Pending[WINDOW_SIZE];
+        private final Queue<Pending> backlog = new ArrayDeque<>();
+        private int oldest;
+        private int limit;
+        private int nextSequence;
+
+        // the smoothed round-trip time and its variation in milliseconds, negative until measured
+        private double srtt = -1;
+        private double rttvar;
+        private long rto;
+
+        /**
+         * Start sending to a peer, with a first timeout based on the round-trip time of the greetings if known.
+         *
+         * @param peer  the peer
+         */
+        Outbound(Peer peer) {
+            this.peer = peer;
+            int rtt = peer.getRtt();
+            this.rto = rtt < 0 ? INITIAL_RTO : clamp(3L * rtt / 1000);
+        }
+
+        /**
+         * Wrap a frame into an envelope and send it, or queue it if the window is full.
+         *
+         * @param frame the encoded frame
+         */
+        synchronized void send(ByteBuffer frame) {
+            int sequence = this.nextSequence++;
+            ByteBuffer envelope = ByteBuffer.allocate(MessageCodec.HEADER_LENGTH + ENVELOPE_BODY_LENGTH + frame.remaining());
+            MessageCodec.putHeader(MessageCodec.RELIABLE, ENVELOPE_BODY_LENGTH + frame.remaining(), envelope);
+            envelope.putInt(this.session).putInt(sequence).put(frame);
+            this.backlog.add(new Pending(sequence, envelope.array()));
+            fill();
+        }
+
+        /**
+         * Process an ack from the peer.
+         *
+         * @param session   the session acknowledged
+         * @param next      the next sequence number the peer expects, all before it are received
+         * @param received  the frames received after the expected one, a bit each
+         */
+        synchronized void acknowledge(int session, int next, long received) {
+            if (session != this.session)
+                return; // for a previous run or a session given up on
+
+            long sample = -1;
+            long now = System.nanoTime();
+            for (int sequence = this.oldest; sequence - this.limit < 0; sequence++) {
+                Pending pending = this.window[sequence & WINDOW_MASK];
+                if (pending == null)
+                    continue;
+                int offset = sequence - next;
+                if (offset < 0 || offset > 0 && offset < Long.SIZE + 1 && (received >>> (offset - 1) & 1) != 0) {
+                    pending.timer.cancel();
+                    this.window[sequence & WINDOW_MASK] = null;
+                    // only frames sent once give a sample, the ack of a resent one is ambiguous
+                    if (pending.transmissions == 1)
+                        sample = now - pending.sentAt;
+                }
+            }
+            if (sample >= 0)
+                measured(TimeUnit.NANOSECONDS.toMillis(sample));
+
+            // a frame is lost if enough later ones arrived, and is sent again without waiting for its
+            // timer, at most once per round trip
+            long holdoff = TimeUnit.MILLISECONDS.toNanos(this.srtt < 0 ? this.rto : (long) Math.ceil(this.srtt));
+            for (int sequence = this.oldest; received != 0 && sequence - this.limit < 0; sequence++) {
+                Pending pending = this.window[sequence & WINDOW_MASK];
+                int offset = sequence - next;
+                if (pending == null || offset < 0 || offset >= Long.SIZE)
+                    continue;
+                if (Long.bitCount(received >>> offset) >= REORDERING_THRESHOLD && now - pending.sentAt >= holdoff) {
+                    pending.timer.cancel();
+                    transmit(pending);
+                }
+            }
+
+            while (this.oldest != this.limit && this.window[this.oldest & WINDOW_MASK] == null)
+                this.oldest++;
+            fill();
+        }
+
+        /**
+         * Send the frames of the backlog that fit in the window.
+         */
+        private void fill() {
+            while (!this.backlog.isEmpty() && this.limit - this.oldest < WINDOW_SIZE) {
+                Pending pending = this.backlog.poll();
+                this.window[pending.sequence & WINDOW_MASK] = pending;
+                this.limit++;
+                transmit(pending);
+            }
+        }
+
+        /**
+         * Send a frame, and schedule sending it again if it is not acknowledged in time.
+         * Each expiry of the timer doubles the timeout.
+         *
+         * @param pending   the frame
+         */
+        private void transmit(Pending pending) {
+            pending.sentAt = System.nanoTime();
+            long timeout = Math.min(this.rto << Math.min(pending.timeouts, 16), MAX_RTO);
+            pending.transmissions++;
+            pending.timer = WHEEL.schedule(() -> expire(pending), timeout, TimeUnit.MILLISECONDS);
+            UDPMessageSender.getInstance().transmit(this.peer, ByteBuffer.wrap(pending.envelope));
+        }
+
+        /**
+         * Send a frame again as it was not acknowledged in time, or give up on the session
+         * once it timed out too many times, e.g. as the peer is gone.
+         *
+         * @param pending   the frame
+         */
+        synchronized void expire(Pending pending) {
+            if (this.window[pending.sequence & WINDOW_MASK] != pending)
+                return; // acknowledged in the meantime
+            if (++pending.timeouts < MAX_TIMEOUTS) {
+                transmit(pending);
+                return;
+            }
+            LOGGER.warning("No ack from " + this.peer + " after " + pending.transmissions + " attempts, giving up");
+            // the next frame starts a new session, which the peer takes as a fresh start
+            OUTBOUND.remove(this.peer.getKey(), this);
+            close();
+        }
+
+        /**
+         * Stop sending the frames not acknowledged yet.
+         */
+        synchronized void close() {
+            for (int i = 0; i < WINDOW_SIZE; i++) {
+                if (this.window[i] != null)
+                    this.window[i].timer.cancel();
+                this.window[i] = null;
+            }
+            this.backlog.clear();
+            this.oldest = this.limit;
+        }
+
+        /**
+         * Update the round-trip time estimate and the timeout with a new sample.
+         *
+         * @param rtt   the sample in milliseconds
+         */
+        private void measured(long rtt) {
+            if (this.srtt < 0) {
+                this.srtt = rtt;
+                this.rttvar = rtt / 2.0;
+            } else {
+                this.rttvar = 0.75 * this.rttvar + 0.25 * Math.abs(this.srtt - rtt);
+                this.srtt = 0.875 * this.srtt + 0.125 * rtt;
+            }
+            this.rto = clamp((long) Math.ceil(this.srtt + Math.max(1, 4 * this.rttvar)));
+        }
+
+        private static long clamp(long rto) {
+            return Math.max(MIN_RTO, Math.min(rto, MAX_RTO));
+        }
+    }
+
+    /**
+     * The frames received from a peer, only used by the receiving thread.
+     */
+    private static class Inbound {
+
+        private final Peer peer;
+        private boolean started;
+        private int session;
+        private int retiredSession;
+
+        // the next sequence number to deliver, and the frames received ahead of it
+        private int expected;
+        private final byte[][] window = new byte[WINDOW_SIZE][];
+
+        Inbound(Peer peer) {
+            this.peer = peer;
+        }
+
+        /**
+         * Receive a frame, acknowledging it, and return the frames that are now in order.
+         *
+         * @param session   the session of the sender
+         * @param sequence  the sequence number of the frame
+         * @param frame     the frame
+         * @return          the frames to deliver, in order
+         */
+        List<ByteBuffer> receive(int session, int sequence, ByteBuffer frame) {
+            if (!this.started || session != this.session) {
+                if (this.started && session == this.retiredSession)
+                    return Collections.emptyList(); // a straggler of the previous session
+                this.retiredSession = this.session;
+                this.session = session;
+                this.started = true;
+                this.expected = 0;
+                Arrays.fill(this.window, null);
+            }
+
+            List<ByteBuffer> delivered = Collections.emptyList();
+            int offset = sequence - this.expected;
+            if (offset == 0) {
+                delivered = new ArrayList<>();
+                delivered.add(frame);
+                this.expected++;
+                byte[] next;
+                while ((next = this.window[this.expected & WINDOW_MASK]) != null) {
+                    this.window[this.expected & WINDOW_MASK] = null;
+                    delivered.add(ByteBuffer.wrap(next));
+                    this.expected++;
+                }
+            } else if (offset > 0 && offset < WINDOW_SIZE && this.window[sequence & WINDOW_MASK] == null) {
+                byte[] copy = new byte[frame.remaining()];
+                frame.get(copy);
+                this.window[sequence & WINDOW_MASK] = copy;
+            }
+            // a duplicate is acknowledged again, in case the previous ack was lost
+            acknowledge();
+            return delivered;
+        }
+
+        /**
+         * Tell the peer which frames were received.
+         */
+        private void acknowledge() {
+            long received = 0;
+            for (int i = 1; i < WINDOW_SIZE; i++) {
+                if (this.window[(this.expected + i) & WINDOW_MASK] != null)
+                    received |= 1L << (i - 1);
+            }
+            ByteBuffer ack = ByteBuffer.allocate(MessageCodec.HEADER_LENGTH + ACK_BODY_LENGTH);
+            MessageCodec.putHeader(MessageCodec.ACK, ACK_BODY_LENGTH, ack);
+            ack.putInt(this.session).putInt(this.expected).putLong(received);
+            ack.flip();
+            UDPMessageSender.getInstance().transmit(this.peer, ack);
+        }
+    }
+}
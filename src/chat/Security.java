@@ -3,11 +3,9 @@ package chat;
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
 import java.io.*;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
-import java.util.Arrays;
 
 /**
  * This class provides utility functions related to security.
@@ -17,25 +15,26 @@ import java.util.Arrays;
  */
 public class Security {
 
-    private static final String ENCRYPTION_ALGO = "DESede";
-    private static final String CIPHER_ALGO_PADDING = "PKCS5Padding";
-    private static final String CIPHER_ALGO_MODE = "CBC";
-    private static final String CIPHER_ALGO = String.join("/",
-            Arrays.asList(ENCRYPTION_ALGO, CIPHER_ALGO_MODE, CIPHER_ALGO_PADDING));
+    // the shared secret key is generated for the original triple-DES suite,
+    // the other suites derive their own key from it
+    private static final String SECRET_KEY_ALGO = "DESede";
 
     public static final String SECRET_KEY_FILE = "secret.key";
 
-    // NOTE:
-    //  IV parameter is needed when using block-chaining mode like CBC
-    //  see http://stackoverflow.com/questions/6669181/why-does-my-aes-encryption-throws-an-invalidkeyexception
-    //
-    //  For triple-DES (DESede), the length of IV is 8 bytes.
-    private static final byte[] IV = new byte[8];
-    static {
-        new SecureRandom().nextBytes(IV);
-    }
+    // size of the plain text chunks that are encrypted independently when streaming
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static volatile boolean ENCRYPTION = true;
+    private static volatile CipherSuite CIPHER_SUITE = CipherSuite.AES_GCM;
 
-    private static boolean ENCRYPTION = true;
+    // the secret key is read from disk once and only reloaded when the key file changes
+    private static volatile CachedKey KEY_CACHE;
+
+    // looking up a cipher from the providers is expensive, so every thread keeps its own instances
+    private static final ThreadLocal<Cipher[]> CIPHERS =
+            ThreadLocal.withInitial(() -> new Cipher[CipherSuite.values().length]);
 
     /**
      * Check if encryption is enabled or not.
@@ -54,86 +53,135 @@ public class Security {
     }
 
     /**
-     * Get the initialization vector (IV) parameter
-     * @return  the IV parameter spec
+     * Get the cipher suite used to encrypt outgoing files.
+     *
+     * @return  the cipher suite
+     */
+    public static CipherSuite getCipherSuite() {
+        return CIPHER_SUITE;
+    }
+
+    /**
+     * Set the cipher suite used to encrypt outgoing files.
+     *
+     * @param suite the cipher suite
+     */
+    public static void setCipherSuite(CipherSuite suite) {
+        CIPHER_SUITE = suite;
+    }
+
+    /**
+     * Generate a fresh random initialization vector for a cipher suite.
+     *
+     * @param suite the cipher suite
+     * @return      the IV bytes
+     */
+    public static byte[] newIV(CipherSuite suite) {
+        byte[] iv = new byte[suite.getIvLength()];
+        RANDOM.nextBytes(iv);
+        return iv;
+    }
+
+    /**
+     * Get a cipher of a suite initialized with the key derived from the saved secret key.
+     * The cipher instance belongs to the calling thread and is re-initialized by the next call
+     * on the same thread, so it must not be kept around.
+     *
+     * @param suite         the cipher suite
+     * @param mode          either {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param iv            the initialization vector
+     * @return              the initialized cipher
+     * @throws Exception    if the key cannot be read or the cipher cannot be initialized
      */
-    public static IvParameterSpec getIV() {
-        return new IvParameterSpec(IV);
+    public static Cipher getCipher(CipherSuite suite, int mode, byte[] iv) throws Exception {
+        SecretKey key = getSecretKey().getKey(suite);
+        Cipher[] ciphers = CIPHERS.get();
+        Cipher cipher = ciphers[suite.ordinal()];
+        if (cipher == null) {
+            cipher = Cipher.getInstance(suite.getTransformation());
+            ciphers[suite.ordinal()] = cipher;
+        }
+        cipher.init(mode, key, suite.getParameters(iv));
+        return cipher;
     }
 
     /**
-     * Encrypt a series of raw byte data.
+     * Encrypt a series of raw byte data as a whole.
      * The IV is prepended to the cipher text so that receiver can use it to perform decryption.
      *
      * @param data          data to be encrypted in raw bytes
+     * @param suite         the cipher suite to encrypt with
      * @return              encrypted data
      * @throws Exception    if an error occurs during encryption
      */
-    public static byte[] encrypt(byte[] data) throws Exception {
-        SecretKey key = readSecretKey();
-        Cipher cipher = Cipher.getInstance(CIPHER_ALGO);
-        if (isIVRequired(CIPHER_ALGO_MODE))
-            cipher.init(Cipher.ENCRYPT_MODE, key, Security.getIV());
-        else
-            cipher.init(Cipher.ENCRYPT_MODE, key);
-        return combine(IV, cipher.doFinal(data));
+    public static byte[] encrypt(byte[] data, CipherSuite suite) throws Exception {
+        byte[] iv = newIV(suite);
+        Cipher cipher = getCipher(suite, Cipher.ENCRYPT_MODE, iv);
+        return combine(iv, cipher.doFinal(data));
     }
 
     /**
-     * Decrypt a series of raw byte data.
+     * Decrypt a series of raw byte data encrypted by {@link #encrypt(byte[], CipherSuite)}.
      *
      * @param data          data to be decrypted in raw bytes
-     * @return              encrypted data
+     * @param suite         the cipher suite the data was encrypted with
+     * @return              decrypted data
      * @throws Exception    if an error occurs during decryption
      */
-    public static byte[] decrypt(byte[] data) throws Exception {
+    public static byte[] decrypt(byte[] data, CipherSuite suite) throws Exception {
         // extract IV and the cipher text from the encrypted data
-        byte[] iv = new byte[IV.length];
-        byte[] ciphertext = new byte[data.length - IV.length];
-        System.arraycopy(data, 0, iv, 0, IV.length);
-        System.arraycopy(data, IV.length, ciphertext, 0, ciphertext.length);
+        if (data.length < suite.getIvLength())
+            throw new IOException("Encrypted data is shorter than its IV");
+        byte[] iv = new byte[suite.getIvLength()];
+        byte[] ciphertext = new byte[data.length - iv.length];
+        System.arraycopy(data, 0, iv, 0, iv.length);
+        System.arraycopy(data, iv.length, ciphertext, 0, ciphertext.length);
 
         // decrypt the cipher text using existing secret key
-        SecretKey key = readSecretKey();
-        Cipher cipher = Cipher.getInstance(CIPHER_ALGO);
-        if (isIVRequired(CIPHER_ALGO_MODE))
-            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
-        else
-            cipher.init(Cipher.ENCRYPT_MODE, key);
+        Cipher cipher = getCipher(suite, Cipher.DECRYPT_MODE, iv);
         return cipher.doFinal(ciphertext);
     }
 
     /**
-     * Decrypt a file using the save secret key.
+     * Generate a secret key for encryption/decryption and save it to file.
      *
-     * @param filename      name of file to be decrypted
-     * @throws Exception    if an error occurs while decrypting the file
+     * @throws IOException              if the process of writing to disk fails
+     * @throws GeneralSecurityException if the key cannot be generated
      */
-    public static void decryptFile(String filename) throws Exception {
-        // read in file content
-        byte[] data = new byte[(int) new File(filename).length()];
-        DataInputStream dis = new DataInputStream(new FileInputStream(filename));
-        dis.readFully(data);
-        dis.close();
-
-        // decrypt the data and write it back to file
-        byte[] decryptedData = decrypt(data);
-        DataOutputStream dos = new DataOutputStream(new FileOutputStream(filename));
-        dos.write(decryptedData);
-        dos.close();
+    public static void generateSecretKey() throws IOException, GeneralSecurityException {
+        KeyGenerator keygen = KeyGenerator.getInstance(SECRET_KEY_ALGO);
+        SecretKey key = keygen.generateKey();
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(SECRET_KEY_FILE));
+        out.writeObject(key);
+        out.close();
+
+        File file = new File(SECRET_KEY_FILE);
+        KEY_CACHE = new CachedKey(key, file.lastModified(), file.length());
     }
 
     /**
-     * Generate a secret key for encryption/decryption and save it to file.
+     * Get the saved secret key, reading it from file only if it has not been read yet
+     * or if the file has changed since.
      *
-     * @throws IOException              if the process of writing to disk fails
-     * @throws NoSuchAlgorithmException if the algorithm name is wrong
+     * @return              the saved secret key along with the keys derived from it
+     * @throws Exception    if the key file cannot be read
      */
-    public static void generateSecretKey() throws IOException, NoSuchAlgorithmException {
-        KeyGenerator keygen = KeyGenerator.getInstance(ENCRYPTION_ALGO);
-        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(SECRET_KEY_FILE));
-        out.writeObject(keygen.generateKey());
-        out.close();
+    private static CachedKey getSecretKey() throws Exception {
+        File file = new File(SECRET_KEY_FILE);
+        CachedKey cached = KEY_CACHE;
+        if (cached != null && cached.isValidFor(file))
+            return cached;
+
+        synchronized (Security.class) {
+            cached = KEY_CACHE;
+            if (cached == null || !cached.isValidFor(file)) {
+                long lastModified = file.lastModified();
+                long length = file.length();
+                cached = new CachedKey(readSecretKey(), lastModified, length);
+                KEY_CACHE = cached;
+            }
+            return cached;
+        }
     }
 
     /**
@@ -151,13 +199,40 @@ public class Security {
     }
 
     /**
-     * Check whether an initialization vector (IV) is required for this cipher mode of operation.
-     *
-     * @param cipherMode    the mode of operation
-     * @return              whether this is a block mode
+     * A secret key and the keys derived from it, together with the state of the file it was read from.
      */
-    private static boolean isIVRequired(String cipherMode) {
-        return cipherMode.contains("CBC");
+    private static class CachedKey {
+
+        private final SecretKey[] keys = new SecretKey[CipherSuite.values().length];
+        private final long lastModified;
+        private final long length;
+
+        CachedKey(SecretKey key, long lastModified, long length) throws GeneralSecurityException {
+            for (CipherSuite suite : CipherSuite.values())
+                this.keys[suite.ordinal()] = suite.deriveKey(key);
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        /**
+         * Get the key to use with a cipher suite.
+         *
+         * @param suite the cipher suite
+         * @return      the derived key
+         */
+        SecretKey getKey(CipherSuite suite) {
+            return this.keys[suite.ordinal()];
+        }
+
+        /**
+         * Check whether the key file is still the one this key was read from.
+         *
+         * @param file  the key file
+         * @return      true if the file has not changed
+         */
+        boolean isValidFor(File file) {
+            return file.lastModified() == this.lastModified && file.length() == this.length;
+        }
     }
 
     /**
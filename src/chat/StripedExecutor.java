@@ -0,0 +1,113 @@
+package chat;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An executor made of single-threaded lanes, where tasks are assigned to a lane by a key.
+ * Tasks with the same key run one after the other in submission order,
+ * while tasks with different keys are spread over the lanes and run in parallel.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class StripedExecutor {
+
+    private final Lane[] lanes;
+    private final int mask;
+
+    /**
+     * Create an executor with one lane per processor.
+     *
+     * @param name  the name of the threads of the lanes
+     */
+    public StripedExecutor(String name) {
+        this(name, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create an executor with a given number of lanes.
+     * The number is rounded up to a power of two.
+     *
+     * @param name      the name of the threads of the lanes
+     * @param stripes   the number of lanes
+     */
+    public StripedExecutor(String name, int stripes) {
+        int count = Integer.highestOneBit(Math.max(stripes, 1) * 2 - 1);
+        this.lanes = new Lane[count];
+        this.mask = count - 1;
+        for (int i = 0; i < count; i++)
+            this.lanes[i] = new Lane(name + "-" + i);
+    }
+
+    /**
+     * Get the lane of a key.
+     *
+     * @param key   the key, e.g. the address of a peer
+     * @return      the lane running the tasks of this key
+     */
+    public Lane lane(Object key) {
+        int hash = key.hashCode();
+        return this.lanes[(hash ^ hash >>> 16) & this.mask];
+    }
+
+    /**
+     * Stop accepting tasks, letting the lanes finish the ones they already have.
+     */
+    public void shutdown() {
+        for (Lane lane : this.lanes)
+            lane.executor.shutdown();
+    }
+
+    /**
+     * A lane of the executor, running its tasks one at a time in submission order.
+     */
+    public static class Lane implements Executor {
+
+        private final ExecutorService executor;
+
+        // the tasks submitted and not finished yet
+        private final AtomicInteger pending = new AtomicInteger();
+
+        /**
+         * Create a lane with its own thread.
+         *
+         * @param name  the name of the thread
+         */
+        Lane(String name) {
+            this.executor = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            this.pending.incrementAndGet();
+            try {
+                this.executor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        this.pending.decrementAndGet();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                this.pending.decrementAndGet();
+                throw e;
+            }
+        }
+
+        /**
+         * Check whether every task submitted to this lane has finished.
+         * If the caller is the only thread submitting to the lane, a task it then runs itself
+         * is still in order with the tasks of the lane.
+         *
+         * @return  true if the lane has nothing to run
+         */
+        public boolean isIdle() {
+            return this.pending.get() == 0;
+        }
+    }
+}
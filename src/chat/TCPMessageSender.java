@@ -3,12 +3,20 @@ package chat;
 import protocol.Message;
 
 import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
-import java.net.Socket;
-import java.security.Key;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class provides functionality to send TCP messages.
@@ -18,46 +26,516 @@ import java.security.Key;
  */
 public class TCPMessageSender {
 
+    private static final int BUFFER_SIZE = 128 * 1024;
+
+    // files are split into chunks of this size, which are shared out between the streams
+    // and are the unit the receiver checkpoints
+    private static final long TRANSFER_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    // how long to wait for the receiver to answer the header, in milliseconds, before giving up
+    private static final int RANGES_TIMEOUT = 30_000;
+
+    // the receiver computes the signature of its whole copy before answering
+    private static final int SIGNATURE_TIMEOUT = 60_000;
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "file-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static volatile int STREAMS = 1;
+
+    /**
+     * Get the number of parallel connections used to send a file.
+     *
+     * @return  the number of streams
+     */
+    public static int getStreamCount() {
+        return STREAMS;
+    }
+
+    /**
+     * Set the number of parallel connections used to send a file.
+     *
+     * @param streams   the number of streams, at least 1
+     */
+    public static void setStreamCount(int streams) {
+        if (streams < 1)
+            throw new IllegalArgumentException("There must be at least one stream");
+        STREAMS = streams;
+    }
+
     /**
      * Send a file over TCP.
+     * The receiver first answers with the ranges of the file it is missing, which is the whole
+     * file unless an earlier transfer of the same file broke off. Those ranges are split into
+     * fixed-size chunks which are streamed straight from disk over one or more parallel
+     * connections, so the file is never held in memory as a whole.
+     * Peers that did not advertise {@link Features#TRANSFERS} get the file the way older
+     * versions expect it instead, see {@link #sendLegacy}.
      *
      * @param dst       the destination peer
      * @param filename  the file name to send
      */
     public static void sendFile(Peer dst, String filename) {
+        FileChannel fileChannel = null;
+        SocketChannel channel = null;
         try {
             if (dst == null || filename == null)
                 throw new IOException("Either destination or file name is empty");
 
-            // initialize a client socket to connect to the server
-            Socket socket = new Socket(dst.getIPAddress(), dst.getPort());
-
-            // read the file into the buffered input stream
             File file = new File(filename);
-            byte[] data = new byte[(int) file.length()];
+            fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            if (!Features.supports(dst, Features.TRANSFERS)) {
+                sendLegacy(dst, file, fileChannel);
+                UserInterface.display("Sent " + filename + " to " + dst + " in the format of older versions");
+                return;
+            }
 
-            BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
-            in.read(data, 0, data.length);
+            CipherSuite suite = Security.isEncryptionEnabled() ? Security.getCipherSuite() : null;
+            long size = fileChannel.size();
+            long fileId = getFileId(file, size);
+            byte compression = Compression.choose(file.getName(), fileChannel);
 
-            // encrypt data
-            if (Security.isEncryptionEnabled())
-                data = Security.encrypt(data);
+            // the first connection asks the receiver which ranges it still needs
+            channel = connect(dst);
+            DataOutputStream out = openStream(channel);
+            writeHeader(out, Message.FILE, file.getName(), size, fileId, suite, compression);
+            out.flush();
+            List<long[]> ranges = readRanges(channel);
+            Chunks chunks = new Chunks(ranges);
+            if (chunks.remaining() < size)
+                UserInterface.display("Resuming " + filename + ", " + chunks.remaining() + " of " + size + " bytes left");
 
-            // send over the file name, file size and file contents respectively
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-            out.writeUTF(Message.FILE);
+            // no point in opening more connections than there are chunks
+            int streams = Math.max(1, Math.min(STREAMS, chunks.count()));
+            FileChannel source = fileChannel;
+            List<Future<Stream>> others = new ArrayList<>();
+            for (int i = 1; i < streams; i++)
+                others.add(EXECUTOR.submit(() -> {
+                    SocketChannel part = connect(dst);
+                    try {
+                        DataOutputStream partOut = openStream(part);
+                        writeHeader(partOut, Message.FILE_PART, file.getName(), size, fileId, suite, compression);
+                        return sendChunks(part, partOut, source, suite, compression, chunks);
+                    } finally {
+                        close(part);
+                    }
+                }));
+
+            List<Stream> results = new ArrayList<>();
+            results.add(sendChunks(channel, out, source, suite, compression, chunks));
+            for (Future<Stream> other : others)
+                results.add(getResult(other));
+
+            UserInterface.display("Sent " + filename + " to " + dst);
+            if (streams > 1)
+                for (int i = 0; i < results.size(); i++)
+                    UserInterface.display("  stream " + (i + 1) + ": " + results.get(i));
+        } catch (Exception e) {
+            UserInterface.display("Error while trying to send file: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            close(channel);
+            close(fileChannel);
+        }
+    }
+
+    /**
+     * Send a file over TCP as a delta against the copy the receiver already has.
+     * The receiver answers the header with the checksums of the blocks of its copy,
+     * and only the parts of the file that do not match any of its blocks are sent.
+     * Peers that did not advertise {@link Features#TRANSFERS} get the whole file the way older
+     * versions expect it instead, see {@link #sendLegacy}.
+     *
+     * @param dst       the destination peer
+     * @param filename  the file name to send
+     */
+    public static void sendDelta(Peer dst, String filename) {
+        FileChannel fileChannel = null;
+        SocketChannel channel = null;
+        try {
+            if (dst == null || filename == null)
+                throw new IOException("Either destination or file name is empty");
+
+            File file = new File(filename);
+            fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            if (!Features.supports(dst, Features.TRANSFERS)) {
+                sendLegacy(dst, file, fileChannel);
+                UserInterface.display("Sent " + filename + " to " + dst + " in full, in the format of older versions");
+                return;
+            }
+
+            CipherSuite suite = Security.isEncryptionEnabled() ? Security.getCipherSuite() : null;
+            long size = fileChannel.size();
+
+            channel = connect(dst);
+            DataOutputStream out = openStream(channel);
+            out.writeUTF(Message.FILE_DELTA);
             out.writeUTF(file.getName());
-            out.writeLong(data.length);
-            out.write(data, 0, data.length);
+            out.writeLong(size);
+            out.writeByte(suite == null ? CipherSuite.NONE : suite.getId());
             out.flush();
-            UserInterface.display("Sent " + filename + " to " + dst);
 
-            // cleanup
-            in.close();
-            out.close();
+            channel.socket().setSoTimeout(SIGNATURE_TIMEOUT);
+            DeltaTransfer.Signature signature = DeltaTransfer.readSignature(
+                    new DataInputStream(new BufferedInputStream(channel.socket().getInputStream())));
+            EncryptingOutputStream encrypting = suite == null ? null : new EncryptingOutputStream(out, suite);
+            DataOutputStream delta = encrypting == null ? out : new DataOutputStream(encrypting);
+            long literal = DeltaTransfer.writeDelta(fileChannel, signature, delta);
+            if (encrypting != null)
+                encrypting.finish();
+
+            UserInterface.display("Sent " + filename + " to " + dst + " as a delta, "
+                    + literal + " of " + size + " bytes sent as they are");
         } catch (Exception e) {
             UserInterface.display("Error while trying to send file: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            close(channel);
+            close(fileChannel);
+        }
+    }
+
+    /**
+     * Send a file the way the versions from before resumable transfers expect it: the file name,
+     * the length of the contents, then the contents, encrypted as a whole with triple-DES if
+     * encryption is enabled. The length of the encrypted contents is known in advance, so they
+     * are encrypted on the fly rather than in memory.
+     *
+     * @param dst           the destination peer
+     * @param file          the file to send
+     * @param fileChannel   the open file
+     * @throws Exception    if an error occurs while encrypting or sending
+     */
+    private static void sendLegacy(Peer dst, File file, FileChannel fileChannel) throws Exception {
+        SocketChannel channel = connect(dst);
+        try {
+            DataOutputStream out = openStream(channel);
+            out.writeUTF(Message.FILE);
+            out.writeUTF(file.getName());
+
+            long size = fileChannel.size();
+            if (!Security.isEncryptionEnabled()) {
+                out.writeLong(size);
+                out.flush();
+                sendPlain(channel, fileChannel, 0, size);
+                return;
+            }
+
+            // [IV][cipher text], the padding always adds between 1 and a whole block
+            CipherSuite suite = CipherSuite.DESEDE_CBC;
+            int block = suite.getIvLength();
+            byte[] iv = Security.newIV(suite);
+            Cipher cipher = Security.getCipher(suite, Cipher.ENCRYPT_MODE, iv);
+            out.writeLong(iv.length + (size / block + 1) * block);
+            out.write(iv);
+
+            ByteBuffer buffer = ByteBuffer.allocate(Security.CHUNK_SIZE);
+            byte[] cipherText = new byte[cipher.getOutputSize(buffer.capacity())];
+            long offset = 0;
+            while (offset < size) {
+                buffer.limit((int) Math.min(buffer.capacity(), size - offset));
+                int bytesRead = fileChannel.read(buffer, offset);
+                if (bytesRead == -1)
+                    throw new EOFException("File ended before its expected size");
+                out.write(cipherText, 0, cipher.update(buffer.array(), 0, bytesRead, cipherText, 0));
+                offset += bytesRead;
+                buffer.clear();
+            }
+            out.write(cipherText, 0, cipher.doFinal(cipherText, 0));
+            out.flush();
+        } finally {
+            close(channel);
+        }
+    }
+
+    /**
+     * Keep sending the next unclaimed chunk of the file over a connection until there is none left.
+     *
+     * @param channel       the connected socket channel
+     * @param out           the stream of the connection, with the header already written
+     * @param file          the file to send
+     * @param suite         the cipher suite to encrypt with, or null to send the contents unencrypted
+     * @param compression   the compression to apply before encrypting
+     * @param chunks        the chunks to send, shared between the streams
+     * @return              the statistics of this stream
+     * @throws IOException  if an error occurs while sending
+     */
+    private static Stream sendChunks(SocketChannel channel, DataOutputStream out, FileChannel file,
+                                     CipherSuite suite, byte compression, Chunks chunks) throws IOException {
+        long start = System.nanoTime();
+
+        // contents go through compression first, then encryption
+        // the ranges are encrypted along with them, so that they cannot be tampered with either
+        OutputStream body = out;
+        EncryptingOutputStream encrypting = null;
+        if (suite != null)
+            body = encrypting = new EncryptingOutputStream(body, suite);
+        DataOutputStream ranges = encrypting == null ? out : new DataOutputStream(encrypting);
+        CompressingOutputStream compressing = null;
+        if (compression == Compression.DEFLATE)
+            body = compressing = new CompressingOutputStream(body);
+
+        try {
+            long sent = 0;
+            long[] chunk;
+            while ((chunk = chunks.next()) != null) {
+                long offset = chunk[0];
+                long length = chunk[1];
+                ranges.writeLong(offset);
+                ranges.writeLong(length);
+                if (body == out) {
+                    out.flush();
+                    sendPlain(channel, file, offset, length);
+                } else {
+                    sendEncoded(body, file, offset, length);
+                }
+                sent += length;
+            }
+            ranges.writeLong(FileReceiver.END_OF_CHUNKS);
+            if (encrypting != null)
+                encrypting.finish();
+            out.flush();
+            return new Stream(sent, System.nanoTime() - start);
+        } finally {
+            // the connection is closed by the caller, only the compressor is released here
+            if (compressing != null)
+                compressing.end();
+        }
+    }
+
+    /**
+     * Send a range of the file as it is.
+     * The bytes are transferred by the kernel from the file to the socket without copying them into the heap.
+     *
+     * @param channel       the connected socket channel
+     * @param file          the file to send
+     * @param offset        the start of the range
+     * @param length        the length of the range
+     * @throws IOException  if an error occurs while sending
+     */
+    private static void sendPlain(SocketChannel channel, FileChannel file, long offset, long length)
+            throws IOException {
+        long end = offset + length;
+        while (offset < end)
+            offset += file.transferTo(offset, end - offset, channel);
+    }
+
+    /**
+     * Compress and/or encrypt a range of the file on the fly and send it.
+     * The range is read and encoded chunk by chunk, so only a few chunk buffers are ever in memory.
+     *
+     * @param out           the encoding stream of the connection
+     * @param file          the file to send
+     * @param offset        the start of the range
+     * @param length        the length of the range
+     * @throws IOException  if an error occurs while encoding or sending
+     */
+    private static void sendEncoded(OutputStream out, FileChannel file, long offset, long length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Security.CHUNK_SIZE);
+        long end = offset + length;
+        while (offset < end) {
+            buffer.limit((int) Math.min(buffer.capacity(), end - offset));
+            int bytesRead = file.read(buffer, offset);
+            if (bytesRead == -1)
+                throw new EOFException("File ended before its expected size");
+            out.write(buffer.array(), 0, bytesRead);
+            offset += bytesRead;
+            buffer.clear();
+        }
+        // end the range on a frame boundary
+        out.flush();
+    }
+
+    /**
+     * Connect to a peer.
+     *
+     * @param dst           the destination peer
+     * @return              the connected socket channel
+     * @throws IOException  if the connection cannot be established
+     */
+    private static SocketChannel connect(Peer dst) throws IOException {
+        return SocketChannel.open(new InetSocketAddress(dst.getIPAddress(), dst.getPort()));
+    }
+
+    /**
+     * Open a buffered stream for writing to a connection.
+     *
+     * @param channel   the connected socket channel
+     * @return          the stream
+     */
+    private static DataOutputStream openStream(SocketChannel channel) {
+        return new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+    }
+
+    /**
+     * Send over the message type, the file name, the file size, the file version, the cipher suite
+     * and the compression of the contents. The size is always the size of the original file contents.
+     * The file name is preceded by {@link FileReceiver#LAYOUT_MARKER}, which tells this layout apart
+     * from the one of older versions.
+     *
+     * @param out           the stream of the connection
+     * @param type          either {@link Message#FILE} or {@link Message#FILE_PART}
+     * @param name          the file name
+     * @param size          the size of the file
+     * @param fileId        the identifier of this version of the file
+     * @param suite         the cipher suite to encrypt with, or null if the contents are not encrypted
+     * @param compression   the compression of the contents
+     * @throws IOException  if an error occurs while sending
+     */
+    private static void writeHeader(DataOutputStream out, String type, String name, long size, long fileId,
+                                    CipherSuite suite, byte compression) throws IOException {
+        out.writeUTF(type);
+        out.writeShort(FileReceiver.LAYOUT_MARKER);
+        out.writeUTF(name);
+        out.writeLong(size);
+        out.writeLong(fileId);
+        out.writeByte(suite == null ? CipherSuite.NONE : suite.getId());
+        out.writeByte(compression);
+    }
+
+    /**
+     * Read the ranges of the file the receiver asks for.
+     *
+     * @param channel                   the connected socket channel
+     * @return                          the requested ranges as [offset, length] pairs
+     * @throws SocketTimeoutException   if the receiver does not answer in time
+     * @throws IOException              if the answer cannot be read
+     */
+    private static List<long[]> readRanges(SocketChannel channel) throws IOException {
+        // only the stream of the socket honours the timeout, the one of the channel blocks forever
+        channel.socket().setSoTimeout(RANGES_TIMEOUT);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+        int count = in.readInt();
+        if (count < 0)
+            throw new IOException("Invalid number of ranges: " + count);
+        List<long[]> ranges = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            ranges.add(new long[]{in.readLong(), in.readLong()});
+        return ranges;
+    }
+
+    /**
+     * Identify a version of a file, so that the receiver only resumes a transfer of the very same contents.
+     *
+     * @param file  the file
+     * @param size  the size of the file
+     * @return      the identifier of the file version
+     */
+    static long getFileId(File file, long size) {
+        long id = file.getName().hashCode();
+        id = 31 * id + size;
+        id = 31 * id + file.lastModified();
+        return id;
+    }
+
+    /**
+     * Wait for a stream running in the background to finish.
+     *
+     * @param future        the background stream
+     * @return              the statistics of the stream
+     * @throws Exception    the error the stream failed with
+     */
+    private static Stream getResult(Future<Stream> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Close a resource quietly.
+     *
+     * @param closeable the resource to close, may be null
+     */
+    private static void close(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The ranges of a file to send, cut into chunks that the streams claim one at a time.
+     */
+    private static class Chunks {
+
+        private final List<long[]> chunks = new ArrayList<>();
+        private final AtomicInteger next = new AtomicInteger();
+        private long remaining;
+
+        /**
+         * Cut ranges into chunks of at most {@link #TRANSFER_CHUNK_SIZE} bytes.
+         *
+         * @param ranges    the ranges as [offset, length] pairs
+         */
+        Chunks(List<long[]> ranges) {
+            for (long[] range : ranges) {
+                for (long offset = range[0]; offset < range[0] + range[1]; offset += TRANSFER_CHUNK_SIZE)
+                    this.chunks.add(new long[]{offset, Math.min(TRANSFER_CHUNK_SIZE, range[0] + range[1] - offset)});
+                this.remaining += range[1];
+            }
+        }
+
+        /**
+         * Claim the next chunk to send.
+         *
+         * @return  the chunk as an [offset, length] pair, or null if there is none left
+         */
+        long[] next() {
+            int index = this.next.getAndIncrement();
+            return index < this.chunks.size() ? this.chunks.get(index) : null;
+        }
+
+        /**
+         * Get the number of chunks.
+         *
+         * @return  the number of chunks
+         */
+        int count() {
+            return this.chunks.size();
+        }
+
+        /**
+         * Get the number of bytes to send in total.
+         *
+         * @return  the number of bytes
+         */
+        long remaining() {
+            return this.remaining;
+        }
+    }
+
+    /**
+     * The statistics of one of the connections used to send a file.
+     */
+    private static class Stream {
+
+        private final long bytes;
+        private final long nanos;
+
+        Stream(long bytes, long nanos) {
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Describe how much this stream sent and how fast.
+         *
+         * @return  a human-readable summary
+         */
+        @Override
+        public String toString() {
+            double seconds = Math.max(this.nanos, 1) / 1e9;
+            return String.format("%.1f MB in %.2f s (%.1f MB/s)",
+                    this.bytes / 1e6, seconds, this.bytes / 1e6 / seconds);
         }
     }
 }
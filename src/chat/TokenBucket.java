@@ -0,0 +1,72 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket pacing an activity to a number of permits per second.
+ * The bucket refills continuously up to its capacity, which bounds the size of a burst
+ * after an idle period. Each permit taken beyond the tokens available is paid for by waiting.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class TokenBucket {
+
+    private final double capacity;
+    private double tokensPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Create a full bucket.
+     *
+     * @param rate      the number of permits per second
+     * @param capacity  the largest number of permits that can be taken at once after an idle period
+     */
+    public TokenBucket(int rate, int capacity) {
+        if (rate <= 0 || capacity <= 0)
+            throw new IllegalArgumentException("Invalid token bucket: " + rate + "/s, capacity " + capacity);
+        this.capacity = capacity;
+        this.tokensPerNano = rate / 1e9;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Change the number of permits per second.
+     *
+     * @param rate  the number of permits per second
+     */
+    public synchronized void setRate(int rate) {
+        if (rate <= 0)
+            throw new IllegalArgumentException("Invalid rate: " + rate);
+        refill();
+        this.tokensPerNano = rate / 1e9;
+    }
+
+    /**
+     * Take a permit, waiting until the bucket has one.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            refill();
+            // the permit is reserved right away, so concurrent callers queue up behind each other
+            this.tokens -= 1;
+            wait = this.tokens >= 0 ? 0 : (long) (-this.tokens / this.tokensPerNano);
+        }
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /**
+     * Add the tokens earned since the last refill.
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefill) * this.tokensPerNano);
+        this.lastRefill = now;
+    }
+}
@@ -0,0 +1,163 @@
+package chat;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A checkpoint of a file being received, kept on disk next to the partial file.
+ * It records which file is being received and which byte ranges of it are already on disk,
+ * so that an interrupted transfer can be resumed where it stopped.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class TransferManifest {
+
+    private static final String EXTENSION = ".part";
+
+    private final File file;
+    private final long size;
+    private final long fileId;
+
+    // completed ranges as start -> end (exclusive), never overlapping nor touching
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+    private long completed;
+
+    /**
+     * Create an empty manifest for a file.
+     *
+     * @param filename  the name of the file being received
+     * @param size      the full size of the file
+     * @param fileId    the identifier of the file version, given by the sender
+     */
+    public TransferManifest(String filename, long size, long fileId) {
+        this.file = new File(filename + EXTENSION);
+        this.size = size;
+        this.fileId = fileId;
+    }
+
+    /**
+     * Load the manifest of a file from disk.
+     *
+     * @param filename  the name of the file being received
+     * @return          the saved manifest, or null if there is none or it cannot be read
+     */
+    public static TransferManifest load(String filename) {
+        File file = new File(filename + EXTENSION);
+        if (!file.isFile())
+            return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            TransferManifest manifest = new TransferManifest(filename, in.readLong(), in.readLong());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long start = in.readLong();
+                manifest.add(start, in.readLong() - start);
+            }
+            return manifest;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write the manifest to disk, replacing the previous version atomically.
+     *
+     * @throws IOException  if the manifest cannot be written
+     */
+    public synchronized void save() throws IOException {
+        File temp = new File(this.file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeLong(this.size);
+            out.writeLong(this.fileId);
+            out.writeInt(this.ranges.size());
+            for (Map.Entry<Long, Long> range : this.ranges.entrySet()) {
+                out.writeLong(range.getKey());
+                out.writeLong(range.getValue());
+            }
+        }
+        Files.move(temp.toPath(), this.file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Remove the manifest from disk, once the file is complete.
+     */
+    public void delete() {
+        this.file.delete();
+    }
+
+    /**
+     * Check whether this manifest describes a given version of a file.
+     *
+     * @param size      the full size of the file
+     * @param fileId    the identifier of the file version
+     * @return          true if it is the same file
+     */
+    public boolean matches(long size, long fileId) {
+        return this.size == size && this.fileId == fileId;
+    }
+
+    /**
+     * Record a range of the file as completed.
+     *
+     * @param offset    the start of the range
+     * @param length    the length of the range
+     */
+    public synchronized void add(long offset, long length) {
+        if (length <= 0)
+            return;
+        long start = offset;
+        long end = offset + length;
+
+        // swallow every range that overlaps or touches the new one
+        Map.Entry<Long, Long> before = this.ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+            this.completed -= before.getValue() - before.getKey();
+            this.ranges.remove(before.getKey());
+        }
+        Map.Entry<Long, Long> after;
+        while ((after = this.ranges.ceilingEntry(start)) != null && after.getKey() <= end) {
+            end = Math.max(end, after.getValue());
+            this.completed -= after.getValue() - after.getKey();
+            this.ranges.remove(after.getKey());
+        }
+
+        this.ranges.put(start, end);
+        this.completed += end - start;
+    }
+
+    /**
+     * Check whether every byte of the file is on disk.
+     *
+     * @return  true if the file is complete
+     */
+    public synchronized boolean isComplete() {
+        return this.completed == this.size;
+    }
+
+    /**
+     * Get the ranges of the file that still have to be received.
+     *
+     * @return  the missing ranges as [offset, length] pairs, in order
+     */
+    public synchronized List<long[]> getMissing() {
+        List<long[]> missing = new ArrayList<>();
+        long position = 0;
+        for (Map.Entry<Long, Long> range : this.ranges.entrySet()) {
+            if (range.getKey() > position)
+                missing.add(new long[]{position, range.getKey() - position});
+            position = range.getValue();
+        }
+        if (position < this.size)
+            missing.add(new long[]{position, this.size - position});
+        return missing;
+    }
+}
@@ -1,36 +1,69 @@
 package chat;
 
 import protocol.Message;
+import protocol.MessageCodec;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 
 /**
  * This class is responsible for sending messages out.
+ * A message sent to several peers is encoded once, and the same bytes are sent to each of them.
+ * Chat messages go through {@link Reliability} when reliable delivery is enabled, and the small
+ * frames sent to the same peer in quick succession share a datagram, see {@link Coalescer}, while
+ * the frames too large for a datagram are split, see {@link Fragmenter}.
+ * Only the peers that advertised {@link Features#BINARY} get messages in the binary format; the
+ * others, including every peer not heard from yet, get a datagram in the legacy text format
+ * of {@link Message#getPayload()}, which older versions understand.
  *
  * @author Khoa Le
  * @version 1.0
  */
 public class UDPMessageSender {
 
-    private static UDPMessageSender INSTANCE;
     private static Logger LOGGER = Logging.setup(Logger.getLogger(UDPMessageSender.class.getName()));
 
-    private DatagramSocket socket;
+    // the largest frame that fits in a datagram
+    private static final int MAX_FRAME_SIZE = MessageCodec.HEADER_LENGTH + MessageCodec.MAX_BODY_LENGTH;
+
+    // a buffer per sending thread to encode messages into, direct so that sending does not copy it
+    private static final ThreadLocal<ByteBuffer> BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAX_FRAME_SIZE));
+
+    // created with the class, on the first call to getInstance(), once the application is set up;
+    // after the other static fields, which the constructor may use
+    private static final UDPMessageSender INSTANCE = new UDPMessageSender();
+
+    private DatagramChannel channel;
+
+    // packs the frames sent to the same peer in quick succession into one datagram
+    private final Coalescer coalescer = new Coalescer(this::send);
 
     /**
      * Construct an instance of this class.
      */
     private UDPMessageSender() {
         try {
-            this.socket = new DatagramSocket();
-        } catch (SocketException e) {
-            LOGGER.severe("Unable to create datagram socket: " + e.getMessage());
+            this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            // allowed to greet the whole subnet at once
+            this.channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+            // multicast out of the interface the listener joined the group on
+            InetAddress localhost = Application.getInstance().getLocalhost();
+            NetworkInterface networkInterface = localhost == null ? null : NetworkInterface.getByInetAddress(localhost);
+            if (networkInterface != null)
+                this.channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        } catch (IOException e) {
+            LOGGER.severe("Unable to create datagram channel: " + e.getMessage());
         }
     }
 
@@ -40,11 +73,6 @@ public class UDPMessageSender {
      * @return  the singleton instance
      */
     public static UDPMessageSender getInstance() {
-        if (INSTANCE == null) {
-            synchronized (MessageProcessor.class) {
-                INSTANCE = new UDPMessageSender();
-            }
-        }
         return INSTANCE;
     }
 
@@ -55,29 +83,186 @@ public class UDPMessageSender {
      * @param msg   the message to send
      */
     public void send(Peer dst, Message msg) {
-        try {
-            if (dst == null || msg == null)
-                return;
-
-            byte[] data = msg.getPayload().getBytes();
-            DatagramPacket packet = new DatagramPacket(
-                    data, data.length,
-                    InetAddress.getByName(dst.getIPAddress()),
-                    dst.getPort());
-            socket.send(packet);
-        } catch (IOException e) {
-            LOGGER.severe("Unable to send msg: " + e.toString());
-            e.printStackTrace();
+        if (dst == null || msg == null)
+            return;
+        if (!Features.supports(dst, Features.BINARY)) {
+            send(encodeText(msg), dst.getSocketAddress());
+            return;
+        }
+
+        ByteBuffer frame = encode(msg);
+        if (frame == null)
+            return;
+        if (Reliability.isReliable(msg))
+            Reliability.send(dst, frame);
+        else
+            transmit(dst, frame);
+    }
+
+    /**
+     * Send a message to an address, which may also be a broadcast address or a multicast group.
+     * Only instances that advertised {@link Features#MULTICAST} are members of the group, so
+     * messages to it are sent in the binary format, and in the text format to any other address.
+     *
+     * @param address       the destination address
+     * @param port          the destination port
+     * @param msg           the message to send
+     * @throws IOException  if the message cannot be sent
+     */
+    public void send(InetAddress address, int port, Message msg) throws IOException {
+        InetSocketAddress dst = new InetSocketAddress(address, port);
+        if (!address.isMulticastAddress()) {
+            this.channel.send(encodeText(msg), dst);
+            return;
         }
+
+        ByteBuffer frame = encode(msg);
+        if (frame == null)
+            return;
+        if (!Fragmenter.isTooLarge(frame)) {
+            this.channel.send(frame, dst);
+            return;
+        }
+        for (ByteBuffer fragment : Fragmenter.split(frame))
+            this.channel.send(fragment, dst);
+    }
+
+    /**
+     * Send a message to a peer in a datagram of its own, right away, e.g. a greeting to an address
+     * that may not answer, so that nothing is kept about it.
+     *
+     * @param dst   the destination peer
+     * @param msg   the message to send
+     */
+    public void sendAlone(Peer dst, Message msg) {
+        if (!Features.supports(dst, Features.BINARY)) {
+            send(encodeText(msg), dst.getSocketAddress());
+            return;
+        }
+
+        ByteBuffer frame = encode(msg);
+        if (frame == null)
+            return;
+        if (!Fragmenter.isTooLarge(frame)) {
+            send(frame, dst.getSocketAddress());
+            return;
+        }
+        for (ByteBuffer fragment : Fragmenter.split(frame))
+            send(fragment, dst.getSocketAddress());
     }
 
     /**
      * Send a message to a list of peers.
+     * The message is encoded once in each format and the same bytes are sent to every peer.
      *
      * @param peers the peers to send message to
      * @param msg   the message to send
      */
     public void send(List<Peer> peers, Message msg) {
-        peers.forEach(peer -> send(peer, msg));
+        if (peers.isEmpty() || msg == null)
+            return;
+
+        List<Peer> binary = new ArrayList<>(peers.size());
+        ByteBuffer text = null;
+        for (int i = 0, size = peers.size(); i < size; i++) {
+            Peer peer = peers.get(i);
+            if (Features.supports(peer, Features.BINARY)) {
+                binary.add(peer);
+                continue;
+            }
+            if (text == null)
+                text = encodeText(msg);
+            text.rewind();
+            send(text, peer.getSocketAddress());
+        }
+        if (binary.isEmpty())
+            return;
+
+        ByteBuffer frame = encode(msg);
+        if (frame == null)
+            return;
+        boolean reliable = Reliability.isReliable(msg);
+        for (int i = 0, size = binary.size(); i < size; i++) {
+            frame.rewind();
+            if (reliable)
+                Reliability.send(binary.get(i), frame);
+            else
+                transmit(binary.get(i), frame);
+        }
+    }
+
+    /**
+     * Encode a message into the buffer of the calling thread.
+     *
+     * @param msg   the message to encode
+     * @return      a read-only view of the frame, or null if the message is too large to send
+     */
+    private static ByteBuffer encode(Message msg) {
+        ByteBuffer buffer = BUFFERS.get();
+        buffer.clear();
+        if (!MessageCodec.encode(msg, buffer)) {
+            LOGGER.warning("Message too large to send: " + msg.getHeader());
+            return null;
+        }
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Encode a message in the legacy text format, for the peers that do not read the binary one.
+     *
+     * @param msg   the message to encode
+     * @return      the datagram
+     */
+    private static ByteBuffer encodeText(Message msg) {
+        return ByteBuffer.wrap(msg.getPayload().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Send the frames waiting to be packed together now, e.g. before exiting.
+     */
+    public void flush() {
+        this.coalescer.flush();
+    }
+
+    /**
+     * Forget a peer that left, dropping the frames waiting to be sent to it.
+     *
+     * @param peer  the peer that left
+     */
+    public void forget(Peer peer) {
+        this.coalescer.forget(peer);
+    }
+
+    /**
+     * Send an encoded frame to a peer as it is, e.g. an envelope of {@link Reliability}.
+     * The frame may share a datagram with the other frames sent to the peer shortly,
+     * or be split over several datagrams if it is too large for one.
+     *
+     * @param dst   the destination peer
+     * @param frame the frame, from its position to its limit
+     */
+    void transmit(Peer dst, ByteBuffer frame) {
+        if (!Fragmenter.isTooLarge(frame)) {
+            this.coalescer.send(dst, frame);
+            return;
+        }
+        for (ByteBuffer fragment : Fragmenter.split(frame))
+            this.coalescer.send(dst, fragment);
+    }
+
+    /**
+     * Send a datagram.
+     *
+     * @param datagram  the datagram, from its position to its limit
+     * @param dst       the destination address
+     */
+    private void send(ByteBuffer datagram, InetSocketAddress dst) {
+        try {
+            this.channel.send(datagram, dst);
+        } catch (IOException e) {
+            LOGGER.severe("Unable to send msg to " + dst + ": " + e.toString());
+            e.printStackTrace();
+        }
     }
 }
@@ -16,25 +16,39 @@ public class UserInterface {
 
     private static final String PROMPT = "> ";
 
+    private static final String CMD_RELIABLE    = "\\a";
+    private static final String CMD_CIPHER      = "\\c";
+    private static final String CMD_DELTA       = "\\d";
     private static final String CMD_ENCRYPT     = "\\e";
     private static final String CMD_FILE        = "\\f";
     private static final String CMD_GENKEY      = "\\g";
     private static final String CMD_HELP        = "\\h";
     private static final String CMD_LIST        = "\\l";
+    private static final String CMD_MULTICAST   = "\\m";
     private static final String CMD_CHAT_PRIV   = "\\p";
+    private static final String CMD_RATE        = "\\r";
+    private static final String CMD_STREAMS     = "\\s";
     private static final String CMD_EXIT        = "\\x";
+    private static final String CMD_COMPRESS    = "\\z";
 
     /**
      * Print help message.
      */
     private void help() {
+        display("\\a    Enable/disable acknowledged, in-order delivery of chat messages");
+        display("\\c    Choose the cipher suite for encryption [format: <aes-gcm|desede-cbc>]");
+        display("\\d    Send a file as a delta against the receiver's copy [format: <ip> <filename>]");
         display("\\e    Enable/disable encryption");
         display("\\f    Send a file [format: <ip> <filename>]");
         display("\\g    Generate a secret key for encryption");
         display("\\h    Help");
         display("\\l    List all connected peers");
+        display("\\m    Enable/disable multicast for public chat messages");
         display("\\p    Chat private [format: <ip> <message>]");
+        display("\\r    Set the number of greetings per second for discovering peers [format: <rate>]");
+        display("\\s    Set the number of parallel streams for sending files [format: <count>]");
         display("\\x    Exit");
+        display("\\z    Enable/disable compression for sending files");
     }
 
     /**
@@ -88,20 +102,68 @@ public class UserInterface {
                         String filename = args[2];
                         TCPMessageSender.sendFile(peer, filename);
                         break;
+                    case CMD_DELTA:
+                        args = input.split(" ", 3);
+                        if (args.length != 3) {
+                            display("Invalid input");
+                            break;
+                        }
+                        TCPMessageSender.sendDelta(PeerManager.getInstance().get(args[1]), args[2]);
+                        break;
                     case CMD_GENKEY:
                         Security.generateSecretKey();
                         display("Generated a secret key saved at " + Security.SECRET_KEY_FILE);
                         break;
+                    case CMD_CIPHER:
+                        args = input.split(" ");
+                        CipherSuite suite = args.length == 2 ? CipherSuite.fromName(args[1]) : null;
+                        if (suite == null) {
+                            display("Invalid input");
+                            break;
+                        }
+                        Security.setCipherSuite(suite);
+                        display("Cipher suite: " + suite.getTransformation());
+                        break;
+                    case CMD_STREAMS:
+                        args = input.split(" ");
+                        int streams = args.length == 2 && args[1].matches("\\d{1,3}") ? Integer.parseInt(args[1]) : 0;
+                        if (streams < 1) {
+                            display("Invalid input");
+                            break;
+                        }
+                        TCPMessageSender.setStreamCount(streams);
+                        display("Parallel streams: " + streams);
+                        break;
+                    case CMD_RATE:
+                        args = input.split(" ");
+                        int rate = args.length == 2 && args[1].matches("\\d{1,6}") ? Integer.parseInt(args[1]) : 0;
+                        if (rate < 1) {
+                            display("Invalid input");
+                            break;
+                        }
+                        DiscoveryScheduler.setRate(rate);
+                        display("Discovery rate: " + rate + " greetings per second");
+                        break;
                     case CMD_ENCRYPT:
                         Security.toggleEncryption();
                         display("Encryption is enabled: " + String.valueOf(Security.isEncryptionEnabled()));
                         break;
+                    case CMD_RELIABLE:
+                        Reliability.toggleReliability();
+                        display("Reliable delivery is enabled: " + String.valueOf(Reliability.isReliabilityEnabled()));
+                        break;
+                    case CMD_MULTICAST:
+                        Multicast.toggleMulticast();
+                        display("Multicast is enabled: " + String.valueOf(Multicast.isMulticastEnabled()));
+                        break;
+                    case CMD_COMPRESS:
+                        Compression.toggleCompression();
+                        display("Compression is enabled: " + String.valueOf(Compression.isCompressionEnabled()));
+                        break;
                     default:
                         // default is a normal public chat message
                         if (input.trim().length() > 0)
-                            UDPMessageSender.getInstance().send(
-                                    PeerManager.getInstance().getAllPeers(),
-                                    new Message(Message.CHAT, input));
+                            Multicast.sendToAll(new Message(Message.CHAT, input));
                         System.out.print(PROMPT);
                         break;
                 }
@@ -1,10 +1,12 @@
 package protocol;
 
+import chat.IPv4;
 import chat.Logging;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
 /**
  * This class represent a general message of this protocol.
@@ -16,11 +18,6 @@ public class Message {
 
     private static Logger LOGGER = Logging.setup(Logger.getLogger(Message.class.getName()));
 
-    // this pattern helps verify IPv4 format
-    // http://stackoverflow.com/a/5667417
-    private static final Pattern IP4_PATTERN = Pattern.compile(
-            "^(([01]?\\d\\d?|2[0-4]\\d|25[0-5])\\.){3}([01]?\\d\\d?|2[0-4]\\d|25[0-5])$");
-
     // this UID code is encoded into messages of this application
     // only message encoded with this secret code is processed
     private static final String UID = "27111991";
@@ -33,10 +30,20 @@ public class Message {
     public static final String CHAT = "MSG";
     public static final String CHAT_PRIV = "MSG_PRIV";
     public static final String FILE = "FILE";
+    public static final String FILE_PART = "FILE_PART";
+    public static final String FILE_DELTA = "FILE_DELTA";
+    public static final String HEARTBEAT = "BEAT";
+
+    // the opcode of each message type in the binary wire format is its index in this table
+    private static final String[] HEADERS = {
+            null, HELLO, HELLO_ACK, BYE, CHAT, CHAT_PRIV, FILE, FILE_PART, FILE_DELTA, HEARTBEAT
+    };
+    public static final int NO_OPCODE = 0;
 
     // message structure
     protected String header;
     protected String data;
+    protected int opcode;
 
     // additional information
     protected String srcIP;
@@ -69,6 +76,7 @@ public class Message {
      */
     public Message(String header, String data, String srcIP) {
         this.header = header;
+        this.opcode = opcodeOf(header);
         this.data = data;
         this.srcIP = srcIP;
     }
@@ -82,6 +90,41 @@ public class Message {
         return this.header;
     }
 
+    /**
+     * Get the opcode of this message type in the binary wire format.
+     *
+     * @return  the opcode, or {@link #NO_OPCODE} if the type is unknown
+     */
+    public int getOpcode() {
+        return this.opcode;
+    }
+
+    /**
+     * Look up the opcode of a message type.
+     *
+     * @param header    the message type
+     * @return          the opcode, or {@link #NO_OPCODE} if the type is unknown
+     */
+    public static int opcodeOf(String header) {
+        for (int i = 1; i < HEADERS.length; i++) {
+            if (HEADERS[i].equals(header))
+                return i;
+        }
+        return NO_OPCODE;
+    }
+
+    /**
+     * Look up the message type of an opcode.
+     *
+     * @param opcode    the opcode
+     * @return          the message type, or null if the opcode is unknown
+     */
+    public static String headerOf(int opcode) {
+        if (opcode <= NO_OPCODE || opcode >= HEADERS.length)
+            return null;
+        return HEADERS[opcode];
+    }
+
     /**
      * Get IP of the source of this message.
      *
@@ -97,7 +140,8 @@ public class Message {
      * @param srcIP the IP of the sender
      */
     public void setSrcIP(String srcIP) {
-        if (!IP4_PATTERN.matcher(srcIP).matches())
+        // checked without a regular expression, as it is called for every received message
+        if (!IPv4.isValid(srcIP))
             LOGGER.warning("The IP address " + srcIP + " is malformed");
         this.srcIP = srcIP;
     }
@@ -123,7 +167,9 @@ public class Message {
     }
 
     /**
-     * Get the payload of this message that to be used for serialization.
+     * Get the payload of this message in the legacy text format.
+     * Messages are sent in the binary format of {@link MessageCodec}, this is kept for peers
+     * running an older version.
      *
      * @return  the message payload
      */
@@ -131,6 +177,22 @@ public class Message {
         return UID + DELIMITER + this.header + DELIMITER + this.data;
     }
 
+    /**
+     * Parse the content of a received buffer and try to convert it to a specific message.
+     * The buffer is read from its position to its limit. Both the binary format of
+     * {@link MessageCodec} and the legacy text format are accepted.
+     *
+     * @param buffer    the received bytes
+     * @return          the parsed result
+     */
+    public static Optional<Message> parse(ByteBuffer buffer) {
+        if (!buffer.hasRemaining())
+            return Optional.empty();
+        if (MessageCodec.isFrame(buffer))
+            return Optional.ofNullable(MessageCodec.decode(buffer));
+        return parse(StandardCharsets.UTF_8.decode(buffer).toString());
+    }
+
     /**
      * Parse a string and try to convert it to a specific message.
      * The result is an optional message i.e. can be null
@@ -0,0 +1,250 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class encodes messages to and decodes them from the binary wire format.
+ * A frame is laid out as follows, in network byte order:
+ * <pre>
+ *     [magic: 2 bytes][version: 1 byte][opcode: 1 byte][body length: 2 bytes][body: UTF-8 data]
+ * </pre>
+ * Both directions work directly on the buffers, without building intermediate strings
+ * for the frame itself; the only allocation on decoding is the data string of the message.
+ * Datagrams in the legacy text format are told apart by the magic, whose first byte is not
+ * valid ASCII, and are handed to {@link Message#parse(String)}.
+ * Envelopes share the header of the frames but carry a binary body, e.g. another frame, which
+ * the transport unwraps before decoding.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public final class MessageCodec {
+
+    public static final short MAGIC = (short) 0xC47E;
+    public static final byte VERSION = 1;
+
+    public static final int HEADER_LENGTH = 6;
+    public static final int MAX_BODY_LENGTH = 0xFFFF;
+
+    // opcodes of the envelopes that carry other frames, unwrapped by the transport before decoding;
+    // they are apart from the message types, so older versions drop them as unknown
+    public static final int RELIABLE = 0xF0;
+    public static final int ACK = 0xF1;
+    public static final int BATCH = 0xF2;
+    public static final int FRAGMENT = 0xF3;
+
+    // scratch space for decoding the body, one per thread so decoding is allocation-free
+    private static final ThreadLocal<char[]> CHARS = ThreadLocal.withInitial(() -> new char[MAX_BODY_LENGTH]);
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Check whether a buffer starts with a binary frame.
+     * The buffer is looked at from its position, which is left untouched.
+     *
+     * @param src   the received bytes
+     * @return      true if the bytes carry the magic of the binary format
+     */
+    public static boolean isFrame(ByteBuffer src) {
+        return src.remaining() >= 2 && src.getShort(src.position()) == MAGIC;
+    }
+
+    /**
+     * Get the opcode of the frame a buffer starts with, without decoding it.
+     * The buffer is looked at from its position, which is left untouched.
+     *
+     * @param src   the received bytes
+     * @return      the opcode, or {@link Message#NO_OPCODE} if the bytes do not start with a
+     *              frame of this version whose body is complete
+     */
+    public static int opcodeOf(ByteBuffer src) {
+        int start = src.position();
+        if (src.remaining() < HEADER_LENGTH || src.getShort(start) != MAGIC || src.get(start + 2) != VERSION)
+            return Message.NO_OPCODE;
+        if ((src.getShort(start + 4) & 0xFFFF) > src.remaining() - HEADER_LENGTH)
+            return Message.NO_OPCODE;
+        return src.get(start + 3) & 0xFF;
+    }
+
+    /**
+     * Get the length of the frame a buffer starts with, header included, without decoding it.
+     * The buffer is looked at from its position, which is left untouched.
+     *
+     * @param src   the received bytes
+     * @return      the length of the frame, or -1 if the bytes do not start with a complete
+     *              frame of this version
+     */
+    public static int lengthOf(ByteBuffer src) {
+        if (opcodeOf(src) == Message.NO_OPCODE)
+            return -1;
+        return HEADER_LENGTH + (src.getShort(src.position() + 4) & 0xFFFF);
+    }
+
+    /**
+     * Write the header of a frame into a buffer, from its position onwards, e.g. for an envelope
+     * whose body is written by the caller.
+     *
+     * @param opcode    the opcode of the frame
+     * @param length    the length of the body
+     * @param dst       the buffer to write to
+     * @return          true if the header was written, false if it does not fit or the body is too long
+     */
+    public static boolean putHeader(int opcode, int length, ByteBuffer dst) {
+        if (dst.remaining() < HEADER_LENGTH || length < 0 || length > MAX_BODY_LENGTH)
+            return false;
+        dst.putShort(MAGIC);
+        dst.put(VERSION);
+        dst.put((byte) opcode);
+        dst.putShort((short) length);
+        return true;
+    }
+
+    /**
+     * Encode a message into a buffer, from its position onwards.
+     * On success the position is moved past the frame; if the frame does not fit
+     * the position is left unchanged.
+     *
+     * @param msg   the message to encode
+     * @param dst   the buffer to write to
+     * @return      true if the message was encoded, false if it does not fit
+     */
+    public static boolean encode(Message msg, ByteBuffer dst) {
+        int opcode = msg.getOpcode();
+        if (opcode == Message.NO_OPCODE)
+            throw new IllegalArgumentException("No opcode for message type " + msg.getHeader());
+
+        int start = dst.position();
+        if (dst.remaining() < HEADER_LENGTH)
+            return false;
+        dst.putShort(MAGIC);
+        dst.put(VERSION);
+        dst.put((byte) opcode);
+        dst.position(start + HEADER_LENGTH);
+
+        int length = putUTF8(msg.getData(), dst);
+        if (length < 0 || length > MAX_BODY_LENGTH) {
+            dst.position(start);
+            return false;
+        }
+        dst.putShort(start + 4, (short) length);
+        return true;
+    }
+
+    /**
+     * Decode a binary frame from a buffer, from its position onwards.
+     * On success the position is moved past the frame.
+     *
+     * @param src   the received bytes
+     * @return      the decoded message, or null if the bytes do not hold a valid frame
+     */
+    public static Message decode(ByteBuffer src) {
+        int start = src.position();
+        if (src.remaining() < HEADER_LENGTH || src.getShort(start) != MAGIC)
+            return null;
+        if (src.get(start + 2) != VERSION)
+            return null;
+
+        String header = Message.headerOf(src.get(start + 3) & 0xFF);
+        int length = src.getShort(start + 4) & 0xFFFF;
+        if (header == null || length > src.remaining() - HEADER_LENGTH)
+            return null;
+
+        String data = length == 0 ? "" : getUTF8(src, start + HEADER_LENGTH, length);
+        src.position(start + HEADER_LENGTH + length);
+        return new Message(header, data);
+    }
+
+    /**
+     * Write a string to a buffer in UTF-8, from its position onwards.
+     *
+     * @param s     the string to write
+     * @param dst   the buffer to write to
+     * @return      the number of bytes written, or -1 if the buffer is too small
+     */
+    private static int putUTF8(String s, ByteBuffer dst) {
+        int start = dst.position();
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            int needed = c < 0x80 ? 1 : c < 0x800 ? 2 : Character.isSurrogate(c) ? 4 : 3;
+            if (dst.remaining() < needed)
+                return -1;
+
+            if (c < 0x80) {
+                dst.put((byte) c);
+            } else if (c < 0x800) {
+                dst.put((byte) (0xC0 | c >> 6));
+                dst.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                dst.put((byte) (0xF0 | cp >> 18));
+                dst.put((byte) (0x80 | cp >> 12 & 0x3F));
+                dst.put((byte) (0x80 | cp >> 6 & 0x3F));
+                dst.put((byte) (0x80 | cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // an unpaired surrogate cannot be encoded
+                dst.put((byte) '?');
+            } else {
+                dst.put((byte) (0xE0 | c >> 12));
+                dst.put((byte) (0x80 | c >> 6 & 0x3F));
+                dst.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * Read a UTF-8 string from a buffer without moving its position.
+     * Malformed sequences are replaced by U+FFFD.
+     *
+     * @param src       the buffer to read from
+     * @param offset    the absolute index of the first byte
+     * @param length    the number of bytes to read
+     * @return          the decoded string
+     */
+    private static String getUTF8(ByteBuffer src, int offset, int length) {
+        char[] chars = CHARS.get();
+        int count = 0;
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            int b = src.get(i++);
+            if (b >= 0) {
+                chars[count++] = (char) b;
+                continue;
+            }
+
+            int extra;
+            int cp;
+            if ((b & 0xE0) == 0xC0) {
+                extra = 1;
+                cp = b & 0x1F;
+            } else if ((b & 0xF0) == 0xE0) {
+                extra = 2;
+                cp = b & 0x0F;
+            } else if ((b & 0xF8) == 0xF0) {
+                extra = 3;
+                cp = b & 0x07;
+            } else {
+                chars[count++] = '\uFFFD';
+                continue;
+            }
+
+            int j = 0;
+            while (j < extra && i < end && (src.get(i) & 0xC0) == 0x80) {
+                cp = cp << 6 | src.get(i++) & 0x3F;
+                j++;
+            }
+            if (j < extra || cp > Character.MAX_CODE_POINT) {
+                chars[count++] = '\uFFFD';
+            } else if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                chars[count++] = Character.highSurrogate(cp);
+                chars[count++] = Character.lowSurrogate(cp);
+            } else {
+                chars[count++] = (char) cp;
+            }
+        }
+        return new String(chars, 0, count);
+    }
+}
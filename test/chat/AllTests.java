@@ -0,0 +1,20 @@
+package chat;
+
+/**
+ * Run every check of the project, exiting with a failure status if any of them failed.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class AllTests {
+
+    public static void main(String[] args) throws Exception {
+        StripedExecutorTest.run();
+        MessageCodecTest.run();
+        SecurityTest.run();
+        UDPMessageSenderTest.run();
+        GreeterTest.run();
+        FileTransferTest.run();
+        Checks.exit();
+    }
+}
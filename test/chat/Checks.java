@@ -0,0 +1,53 @@
+package chat;
+
+/**
+ * The few assertions the checks of this project need, so that they run without a test framework.
+ * Every check is printed, and the process exits with a failure status if any of them failed.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+final class Checks {
+
+    private static int PASSED = 0;
+    private static int FAILED = 0;
+
+    private Checks() {
+    }
+
+    /**
+     * Check a condition.
+     *
+     * @param condition     the condition that must hold
+     * @param description   what is checked
+     */
+    static synchronized void check(boolean condition, String description) {
+        if (condition) {
+            PASSED++;
+            System.out.println("ok      " + description);
+        } else {
+            FAILED++;
+            System.out.println("FAILED  " + description);
+        }
+    }
+
+    /**
+     * Check that two values are equal.
+     *
+     * @param expected      the expected value
+     * @param actual        the actual value
+     * @param description   what is checked
+     */
+    static void checkEquals(Object expected, Object actual, String description) {
+        boolean equal = expected == null ? actual == null : expected.equals(actual);
+        check(equal, equal ? description : description + ": expected " + expected + " but was " + actual);
+    }
+
+    /**
+     * Print the summary and exit, with a failure status if any check failed.
+     */
+    static synchronized void exit() {
+        System.out.println(PASSED + " passed, " + FAILED + " failed");
+        System.exit(FAILED == 0 ? 0 : 1);
+    }
+}
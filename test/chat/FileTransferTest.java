@@ -0,0 +1,237 @@
+package chat;
+
+import protocol.Message;
+import protocol.TCPMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks file transfers between a sender and a receiver of this process over the loopback.
+ * The receiver stores files in the current directory, under names unique to each run, which are
+ * deleted afterwards along with their manifests.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class FileTransferTest {
+
+    private static final int PORT = 4592;
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    // how long the receiver may take to finish a file once it has been sent, in milliseconds
+    private static final long RECEIVE_TIMEOUT = 10_000;
+
+    private static final Random RANDOM = new Random(7);
+
+    // the connections of the transfers, by type
+    private static final AtomicInteger FILES = new AtomicInteger();
+    private static final AtomicInteger PARTS = new AtomicInteger();
+
+    private static Path SOURCES;
+    private static final List<Path> RECEIVED = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        run();
+        Checks.exit();
+    }
+
+    /**
+     * Run every check of this class.
+     *
+     * @throws Exception    if a check cannot run
+     */
+    static void run() throws Exception {
+        Application.PORT = PORT;
+        MessageProcessor.register(Message.FILE, msg -> {
+            FILES.incrementAndGet();
+            FileReceiver.receive((TCPMessage) msg);
+        });
+        MessageProcessor.register(Message.FILE_PART, msg -> {
+            PARTS.incrementAndGet();
+            FileReceiver.receive((TCPMessage) msg);
+        });
+
+        // the receiver is known to support chunked transfers
+        Peer receiver = new Peer("127.0.0.1", PORT);
+        PeerManager.getInstance().add(receiver);
+        PeerManager.getInstance().get(receiver.getIPAddress()).setFeatures(Features.TRANSFERS | Features.BINARY);
+
+        // the sender and the receiver share the key, generated for the run if there is none yet
+        boolean newKey = !new File(Security.SECRET_KEY_FILE).exists();
+        if (newKey)
+            Security.generateSecretKey();
+
+        MessageListener listener = new MessageListener();
+        SOURCES = Files.createTempDirectory("transfer-test");
+        try {
+            Thread.sleep(300);
+            checkParallel(receiver);
+            checkResumed(receiver);
+            checkCompressed(receiver);
+        } finally {
+            listener.stop();
+            TCPMessageSender.setStreamCount(1);
+            if (Compression.isCompressionEnabled())
+                Compression.toggleCompression();
+            if (newKey)
+                Files.delete(Paths.get(Security.SECRET_KEY_FILE));
+            for (Path path : RECEIVED) {
+                Files.deleteIfExists(path);
+                Files.deleteIfExists(Paths.get(path + ".part"));
+            }
+            for (File file : SOURCES.toFile().listFiles())
+                Files.delete(file.toPath());
+            Files.delete(SOURCES);
+        }
+    }
+
+    /**
+     * Send a file of several chunks over several connections and check it arrives whole.
+     */
+    private static void checkParallel(Peer receiver) throws Exception {
+        Path source = createSource("parallel.bin", randomBytes(3 * CHUNK_SIZE + 12345));
+        TCPMessageSender.setStreamCount(4);
+        FILES.set(0);
+        PARTS.set(0);
+
+        TCPMessageSender.sendFile(receiver, source.toString());
+        Checks.check(awaitReceived(source), "a file sent over 4 streams arrives whole");
+        Checks.checkEquals(1, FILES.get(), "the transfer has one first connection");
+        Checks.checkEquals(3, PARTS.get(), "the transfer has 3 more connections, one per other chunk");
+        Checks.check(!Files.exists(Paths.get(source.getFileName() + ".part")), "no manifest is left behind");
+    }
+
+    /**
+     * Leave the partial file and the manifest of an interrupted transfer, with one chunk on disk,
+     * then send the file again and check only the missing chunks are sent.
+     * The chunk on disk differs from the sent file, so it shows whether it was sent again.
+     */
+    private static void checkResumed(Peer receiver) throws Exception {
+        byte[] contents = randomBytes(3 * CHUNK_SIZE);
+        Path source = createSource("resumed.bin", contents);
+        Path received = source.getFileName();
+        long fileId = TCPMessageSender.getFileId(source.toFile(), contents.length);
+
+        byte[] partial = new byte[contents.length];
+        Arrays.fill(partial, CHUNK_SIZE, 2 * CHUNK_SIZE, (byte) 1);
+        Files.write(received, partial);
+        TransferManifest manifest = new TransferManifest(received.toString(), contents.length, fileId);
+        manifest.add(CHUNK_SIZE, CHUNK_SIZE);
+        manifest.save();
+        TCPMessageSender.setStreamCount(1);
+
+        TCPMessageSender.sendFile(receiver, source.toString());
+        byte[] expected = contents.clone();
+        System.arraycopy(partial, CHUNK_SIZE, expected, CHUNK_SIZE, CHUNK_SIZE);
+        Path kept = SOURCES.resolve("kept-" + received);
+        Files.write(kept, expected);
+        Checks.check(awaitReceived(kept, received), "only the chunks missing from an interrupted transfer are sent");
+        Checks.check(!Files.exists(Paths.get(received + ".part")), "the manifest is removed once the file is whole");
+    }
+
+    /**
+     * Enable compression, then send a text file, which is compressed, and files that are not worth
+     * compressing, and check they all arrive whole.
+     */
+    private static void checkCompressed(Peer receiver) throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < CHUNK_SIZE + 12345; i++)
+            text.append(i).append(",peer-").append(i % 97).append(",").append(RANDOM.nextInt(1000)).append('\n');
+        Path csv = createSource("compressed.csv", text.toString().getBytes(StandardCharsets.UTF_8));
+        Path zip = createSource("compressed.zip", text.toString().getBytes(StandardCharsets.UTF_8));
+        Path random = createSource("random.csv", randomBytes(CHUNK_SIZE + 12345));
+        if (!Compression.isCompressionEnabled())
+            Compression.toggleCompression();
+        TCPMessageSender.setStreamCount(2);
+
+        Checks.checkEquals(Compression.DEFLATE, choose(csv), "a text file is compressed");
+        Checks.checkEquals(Compression.NONE, choose(zip), "a file in a compressed format is not compressed again");
+        Checks.checkEquals(Compression.NONE, choose(random), "a file that does not shrink is not compressed");
+        TCPMessageSender.sendFile(receiver, csv.toString());
+        Checks.check(awaitReceived(csv), "a compressed text file arrives whole");
+        TCPMessageSender.sendFile(receiver, zip.toString());
+        Checks.check(awaitReceived(zip), "a file in a compressed format arrives whole");
+        TCPMessageSender.sendFile(receiver, random.toString());
+        Checks.check(awaitReceived(random), "a file that does not shrink arrives whole");
+    }
+
+    /**
+     * Decide how to compress a file before sending it.
+     *
+     * @param source    the file
+     * @return          the compression to use
+     */
+    private static byte choose(Path source) throws IOException {
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            return Compression.choose(source.getFileName().toString(), channel);
+        }
+    }
+
+    /**
+     * Create a file to send.
+     *
+     * @param suffix    the end of the file name
+     * @param contents  the contents
+     * @return          the path of the file
+     */
+    private static Path createSource(String suffix, byte[] contents) throws IOException {
+        Path source = SOURCES.resolve("transfer-test-" + System.nanoTime() + "-" + suffix);
+        Files.write(source, contents);
+        RECEIVED.add(source.getFileName());
+        return source;
+    }
+
+    /**
+     * Wait for a file to be received completely.
+     *
+     * @param source    the sent file
+     * @return          true if the received file has the contents of the sent one
+     */
+    private static boolean awaitReceived(Path source) throws IOException, InterruptedException {
+        return awaitReceived(source, source.getFileName());
+    }
+
+    /**
+     * Wait for a file to be received completely.
+     *
+     * @param source    a file with the expected contents
+     * @param received  the received file
+     * @return          true if the received file has the expected contents
+     */
+    private static boolean awaitReceived(Path source, Path received) throws IOException, InterruptedException {
+        Path manifest = Paths.get(received + ".part");
+        byte[] expected = Files.readAllBytes(source);
+        long deadline = System.currentTimeMillis() + RECEIVE_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            if (Files.exists(received) && !Files.exists(manifest)
+                    && Arrays.equals(expected, Files.readAllBytes(received)))
+                return true;
+            Thread.sleep(20);
+        }
+        return false;
+    }
+
+    /**
+     * Make random contents, which do not compress.
+     *
+     * @param size  the size
+     * @return      the contents
+     */
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,175 @@
+package chat;
+
+import protocol.Message;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that {@link Greeter} answers the greetings of newcomers after a random delay, with a
+ * single {@link Message#HELLO_ACK} for all the newcomers greeted in the meantime, and leaves out
+ * the newcomers another peer answered first.
+ * The newcomers are sockets on loopback addresses, which get their answers by unicast.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class GreeterTest {
+
+    private static final int PORT = 4591;
+    private static final int NEWCOMERS = 5;
+
+    // the bounds of the delay before answering, with some slack for the scheduling of the test
+    private static final int MIN_DELAY = 20;
+    private static final int MAX_DELAY = 200 + 100;
+
+    public static void main(String[] args) throws Exception {
+        run();
+        Checks.exit();
+    }
+
+    /**
+     * Run every check of this class.
+     *
+     * @throws Exception    if a check cannot run
+     */
+    static void run() throws Exception {
+        Application.PORT = PORT;
+        Application.getInstance().init();
+        Discovery.setMode(Discovery.Mode.UNICAST);
+
+        List<Peer> peers = new ArrayList<>();
+        List<DatagramSocket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < NEWCOMERS; i++) {
+                Peer peer = new Peer("127.0.0." + (i + 2), PORT);
+                DatagramSocket socket = new DatagramSocket(new InetSocketAddress(peer.getIPAddress(), PORT));
+                socket.setSoTimeout(1000);
+                peers.add(peer);
+                sockets.add(socket);
+            }
+            checkAggregation(peers, sockets);
+            checkSingleNewcomer(peers.get(0), sockets.get(0));
+            checkAnsweredElsewhere(peers, sockets);
+            checkJitter(peers.get(0), sockets.get(0));
+        } finally {
+            for (DatagramSocket socket : sockets)
+                socket.close();
+        }
+    }
+
+    /**
+     * Greet from several newcomers at once and check they all get the same single answer.
+     */
+    private static void checkAggregation(List<Peer> peers, List<DatagramSocket> sockets) throws IOException {
+        for (Peer peer : peers)
+            Greeter.answer(peer, String.valueOf(System.nanoTime()));
+
+        List<String> answers = new ArrayList<>();
+        for (DatagramSocket socket : sockets)
+            answers.add(receive(socket));
+        Checks.check(!answers.contains(null), "every newcomer got an answer");
+        Checks.checkEquals(1, (int) answers.stream().distinct().count(), "the newcomers got the same answer");
+
+        String[] fields = answers.get(0) == null ? new String[0] : answers.get(0).split(Message.DELIMITER, 4);
+        Checks.checkEquals(4, fields.length, "the answer has the stamp, the known peers, the answered and the features");
+        if (fields.length == 4) {
+            Checks.checkEquals("-", fields[0], "no stamp is echoed when several newcomers are answered");
+            Checks.checkEquals(peers, Greeter.decode(fields[2]), "the answer lists every newcomer");
+            Checks.checkEquals(Features.advertisement(), fields[3], "the answer advertises the features");
+        }
+
+        boolean more = false;
+        for (DatagramSocket socket : sockets)
+            more |= receive(socket, 300) != null;
+        Checks.check(!more, "no newcomer got a second answer");
+    }
+
+    /**
+     * Greet from a single newcomer and check its stamp is echoed, so it can time the round trip.
+     */
+    private static void checkSingleNewcomer(Peer peer, DatagramSocket socket) throws IOException {
+        Greeter.answer(peer, "12345");
+        String answer = receive(socket);
+        Checks.check(answer != null && answer.startsWith("12345" + Message.DELIMITER),
+                "the stamp of a single newcomer is echoed");
+    }
+
+    /**
+     * Greet from newcomers, some of them then answered by another peer, and check only the
+     * others get an answer.
+     */
+    private static void checkAnsweredElsewhere(List<Peer> peers, List<DatagramSocket> sockets) throws IOException {
+        for (Peer peer : peers)
+            Greeter.answer(peer, String.valueOf(System.nanoTime()));
+        Greeter.answered(peers.subList(1, peers.size()));
+
+        String answer = receive(sockets.get(0));
+        Checks.check(answer != null, "the newcomer nobody answered got an answer");
+        if (answer != null)
+            Checks.checkEquals(Collections.singletonList(peers.get(0)),
+                    Greeter.decode(answer.split(Message.DELIMITER, 4)[2]), "the answer only lists that newcomer");
+
+        boolean others = false;
+        for (DatagramSocket socket : sockets.subList(1, sockets.size()))
+            others |= receive(socket, 300) != null;
+        Checks.check(!others, "the newcomers answered by another peer got no answer");
+    }
+
+    /**
+     * Check the delay before answering stays within its bounds and actually varies.
+     */
+    private static void checkJitter(Peer peer, DatagramSocket socket) throws IOException {
+        long[] delays = new long[10];
+        for (int i = 0; i < delays.length; i++) {
+            long start = System.nanoTime();
+            Greeter.answer(peer, "1");
+            receive(socket);
+            delays[i] = (System.nanoTime() - start) / 1_000_000;
+        }
+        Arrays.sort(delays);
+        Checks.check(delays[0] >= MIN_DELAY, "no answer came before " + MIN_DELAY + " ms: " + Arrays.toString(delays));
+        Checks.check(delays[delays.length - 1] <= MAX_DELAY, "every answer came within the window: " + Arrays.toString(delays));
+        Checks.check(delays[delays.length - 1] - delays[0] >= 10, "the delay varies between answers");
+    }
+
+    /**
+     * Receive the data of the next answer.
+     *
+     * @param socket    the socket of a newcomer
+     * @return          the data of the answer, or null if none came in time
+     */
+    private static String receive(DatagramSocket socket) throws IOException {
+        return receive(socket, 1000);
+    }
+
+    /**
+     * Receive the data of the next answer, sent in the text format to a newcomer not heard from yet.
+     *
+     * @param socket    the socket of a newcomer
+     * @param timeout   how long to wait, in milliseconds
+     * @return          the data of the answer, or null if none came in time
+     */
+    private static String receive(DatagramSocket socket, int timeout) throws IOException {
+        byte[] buffer = new byte[2048];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        socket.setSoTimeout(timeout);
+        try {
+            socket.receive(packet);
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+        Message msg = Message.parse(new String(buffer, 0, packet.getLength(), StandardCharsets.UTF_8)).orElse(null);
+        if (msg == null || !msg.getHeader().equals(Message.HELLO_ACK))
+            return null;
+        return msg.getData();
+    }
+}
@@ -0,0 +1,170 @@
+package chat;
+
+import protocol.Message;
+import protocol.MessageCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that {@link MessageCodec} encodes messages into binary frames whose body is the UTF-8 of
+ * their data, decodes them back, and rejects frames it cannot trust, and that
+ * {@link Message#parse(ByteBuffer)} still reads the text format of older versions.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class MessageCodecTest {
+
+    private static final String[] HEADERS = {
+            Message.HELLO, Message.HELLO_ACK, Message.BYE, Message.CHAT, Message.CHAT_PRIV,
+            Message.FILE, Message.FILE_PART, Message.FILE_DELTA, Message.HEARTBEAT
+    };
+
+    private static final Random RANDOM = new Random(11);
+
+    public static void main(String[] args) throws Exception {
+        run();
+        Checks.exit();
+    }
+
+    /**
+     * Run every check of this class.
+     *
+     * @throws Exception    if a check cannot run
+     */
+    static void run() throws Exception {
+        checkRoundTrip();
+        checkLimits();
+        checkInvalidFrames();
+        checkText();
+    }
+
+    /**
+     * Encode messages of every type with all sorts of characters and check the body is their UTF-8
+     * and they decode to the same message.
+     */
+    private static void checkRoundTrip() {
+        String[] samples = {"", "hello world", "café 中文", "😀 smile", randomString(2000)};
+        ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.HEADER_LENGTH + MessageCodec.MAX_BODY_LENGTH);
+        boolean utf8 = true;
+        boolean decoded = true;
+        for (String header : HEADERS) {
+            for (String data : samples) {
+                buffer.clear();
+                MessageCodec.encode(new Message(header, data), buffer);
+                buffer.flip();
+                byte[] body = new byte[buffer.remaining() - MessageCodec.HEADER_LENGTH];
+                buffer.position(MessageCodec.HEADER_LENGTH);
+                buffer.get(body);
+                utf8 &= Arrays.equals(data.getBytes(StandardCharsets.UTF_8), body);
+
+                buffer.position(0);
+                Message msg = MessageCodec.decode(buffer);
+                decoded &= msg != null && msg.getHeader().equals(header) && msg.getData().equals(data)
+                        && !buffer.hasRemaining();
+            }
+        }
+        Checks.check(utf8, "the body of a frame is the UTF-8 of the data");
+        Checks.check(decoded, "every frame decodes to the encoded message");
+
+        // an unpaired surrogate has no UTF-8, it is sent the way String.getBytes sends it
+        String unpaired = "a\ud800b";
+        buffer.clear();
+        MessageCodec.encode(new Message(Message.CHAT, unpaired), buffer);
+        buffer.flip();
+        Checks.checkEquals("a?b", MessageCodec.decode(buffer).getData(), "an unpaired surrogate is replaced");
+    }
+
+    /**
+     * Check a frame is encoded only if it fits, both the buffer and the length field.
+     */
+    private static void checkLimits() {
+        char[] longest = new char[MessageCodec.MAX_BODY_LENGTH];
+        Arrays.fill(longest, 'x');
+        ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.HEADER_LENGTH + MessageCodec.MAX_BODY_LENGTH + 1);
+        Checks.check(MessageCodec.encode(new Message(Message.CHAT, new String(longest)), buffer),
+                "the longest body is encoded");
+        Checks.checkEquals(MessageCodec.HEADER_LENGTH + MessageCodec.MAX_BODY_LENGTH,
+                MessageCodec.lengthOf((ByteBuffer) buffer.flip()), "the length field holds the longest body");
+
+        buffer.clear().position(1);
+        Checks.check(!MessageCodec.encode(new Message(Message.CHAT, new String(longest) + "x"), buffer),
+                "a body over the length field is not encoded");
+        Checks.checkEquals(1, buffer.position(), "a frame that is not encoded leaves the position as it was");
+
+        ByteBuffer small = ByteBuffer.allocate(MessageCodec.HEADER_LENGTH + 4);
+        Checks.check(!MessageCodec.encode(new Message(Message.CHAT, "中文"), small),
+                "a frame over the buffer is not encoded");
+        Checks.checkEquals(0, small.position(), "the buffer is left as it was");
+    }
+
+    /**
+     * Check frames with a wrong magic number, version or type, or a body shorter than their
+     * length, are rejected.
+     */
+    private static void checkInvalidFrames() {
+        byte[] frame = encode(new Message(Message.CHAT, "hello"));
+
+        byte[] magic = frame.clone();
+        magic[0] ^= 1;
+        Checks.check(MessageCodec.decode(ByteBuffer.wrap(magic)) == null, "a frame with another magic number is rejected");
+
+        byte[] version = frame.clone();
+        version[2]++;
+        Checks.check(MessageCodec.decode(ByteBuffer.wrap(version)) == null, "a frame of another version is rejected");
+
+        byte[] type = frame.clone();
+        type[3] = (byte) 0x7F;
+        Checks.check(MessageCodec.decode(ByteBuffer.wrap(type)) == null, "a frame of an unknown type is rejected");
+
+        ByteBuffer truncated = ByteBuffer.wrap(frame, 0, frame.length - 1);
+        Checks.check(MessageCodec.decode(truncated) == null, "a truncated frame is rejected");
+        Checks.checkEquals(0, truncated.position(), "a rejected frame is not consumed");
+    }
+
+    /**
+     * Check a datagram in the text format of older versions is still parsed.
+     */
+    private static void checkText() {
+        Message sent = new Message(Message.CHAT, "café au lait");
+        ByteBuffer text = ByteBuffer.wrap(sent.getPayload().getBytes(StandardCharsets.UTF_8));
+        Checks.check(!MessageCodec.isFrame(text), "a text datagram is not taken for a frame");
+        Message parsed = Message.parse(text).orElse(null);
+        Checks.check(parsed != null && parsed.getHeader().equals(Message.CHAT)
+                && parsed.getData().equals(sent.getData()), "a text datagram is parsed");
+
+        ByteBuffer binary = ByteBuffer.wrap(encode(sent));
+        parsed = Message.parse(binary).orElse(null);
+        Checks.check(parsed != null && parsed.getData().equals(sent.getData()), "a frame is parsed");
+    }
+
+    /**
+     * Encode a message into a frame of its own.
+     *
+     * @param msg   the message
+     * @return      the frame
+     */
+    private static byte[] encode(Message msg) {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        MessageCodec.encode(msg, buffer);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Make a string of random characters, surrogate pairs included.
+     *
+     * @param length    the number of code points
+     * @return          the string
+     */
+    private static String randomString(int length) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            // one in four outside the basic plane, the others below the surrogates
+            s.appendCodePoint(RANDOM.nextInt(4) == 0 ? 0x10000 + RANDOM.nextInt(0x10000) : RANDOM.nextInt(0xD800));
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,136 @@
+package chat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that {@link Security} encrypts and decrypts with every cipher suite, from many threads at
+ * once as each of them has ciphers of its own, and that it picks up a new secret key.
+ * The key file in the current directory is put back as it was afterwards.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class SecurityTest {
+
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 500;
+
+    public static void main(String[] args) throws Exception {
+        run();
+        Checks.exit();
+    }
+
+    /**
+     * Run every check of this class.
+     *
+     * @throws Exception    if a check cannot run
+     */
+    static void run() throws Exception {
+        Path keyFile = Paths.get(Security.SECRET_KEY_FILE);
+        byte[] savedKey = Files.exists(keyFile) ? Files.readAllBytes(keyFile) : null;
+        try {
+            Security.generateSecretKey();
+            checkConcurrentRoundTrips();
+            checkTampering();
+            checkNewKey(keyFile);
+        } finally {
+            if (savedKey == null)
+                Files.deleteIfExists(keyFile);
+            else
+                Files.write(keyFile, savedKey);
+        }
+    }
+
+    /**
+     * Encrypt and decrypt data of various sizes with every suite on several threads at once,
+     * and check every thread got its data back.
+     */
+    private static void checkConcurrentRoundTrips() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                Random random = new Random(t);
+                results.add(executor.submit((Callable<Boolean>) () -> {
+                    boolean equal = true;
+                    for (int i = 0; i < ROUNDS; i++) {
+                        CipherSuite suite = CipherSuite.values()[i % CipherSuite.values().length];
+                        byte[] data = new byte[random.nextInt(3000)];
+                        random.nextBytes(data);
+                        equal &= Arrays.equals(data, Security.decrypt(Security.encrypt(data, suite), suite));
+                    }
+                    return equal;
+                }));
+            }
+            boolean equal = true;
+            for (Future<Boolean> result : results)
+                equal &= result.get();
+            Checks.check(equal, "data encrypted on " + THREADS + " threads at once decrypts to itself with every suite");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Check the same data is encrypted differently every time, and an authenticated suite
+     * rejects a modified cipher text.
+     */
+    private static void checkTampering() throws Exception {
+        byte[] data = "attack at dawn".getBytes("UTF-8");
+        boolean fresh = true;
+        for (CipherSuite suite : CipherSuite.values())
+            fresh &= !Arrays.equals(Security.encrypt(data, suite), Security.encrypt(data, suite));
+        Checks.check(fresh, "every encryption gets a fresh IV");
+
+        byte[] encrypted = Security.encrypt(data, CipherSuite.AES_GCM);
+        encrypted[encrypted.length - 1] ^= 1;
+        Checks.check(fails(encrypted, CipherSuite.AES_GCM), "a modified cipher text is rejected with " + CipherSuite.AES_GCM);
+        Checks.check(fails(new byte[3], CipherSuite.AES_GCM), "data shorter than its IV is rejected");
+    }
+
+    /**
+     * Replace the secret key, then put the previous key file back as another process would,
+     * and check the key in use follows the file.
+     */
+    private static void checkNewKey(Path keyFile) throws Exception {
+        byte[] data = "attack at dusk".getBytes("UTF-8");
+        byte[] before = Security.encrypt(data, CipherSuite.AES_GCM);
+        byte[] previousKey = Files.readAllBytes(keyFile);
+
+        Security.generateSecretKey();
+        Checks.check(fails(before, CipherSuite.AES_GCM), "data encrypted with the previous key no longer decrypts");
+        Checks.check(Arrays.equals(data, Security.decrypt(Security.encrypt(data, CipherSuite.AES_GCM), CipherSuite.AES_GCM)),
+                "data encrypted with the new key decrypts");
+
+        // let the modification time move on, the key is re-read when it changes
+        Thread.sleep(20);
+        Files.write(keyFile, previousKey);
+        Checks.check(!fails(before, CipherSuite.AES_GCM), "a key file changed on disk is read again");
+    }
+
+    /**
+     * Check whether decryption fails.
+     *
+     * @param data  the encrypted data
+     * @param suite the cipher suite
+     * @return      true if the data cannot be decrypted
+     */
+    private static boolean fails(byte[] data, CipherSuite suite) {
+        try {
+            Security.decrypt(data, suite);
+            return false;
+        } catch (Exception e) {
+            return true;
+        }
+    }
+}
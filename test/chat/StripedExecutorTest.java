@@ -0,0 +1,132 @@
+package chat;
+
+import protocol.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that the lanes of {@link StripedExecutor} keep the tasks of a key in order, and that
+ * messages dispatched to them by {@link MessageProcessor} are handled in the order they arrived
+ * from each peer, inline handlers included.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class StripedExecutorTest {
+
+    private static final int KEYS = 16;
+    private static final int TASKS_PER_KEY = 5000;
+
+    public static void main(String[] args) throws Exception {
+        run();
+        Checks.exit();
+    }
+
+    /**
+     * Run every check of this class.
+     *
+     * @throws Exception    if a check cannot run
+     */
+    static void run() throws Exception {
+        checkLaneOrder();
+        checkDispatchOrder();
+    }
+
+    /**
+     * Submit interleaved tasks for several keys and check each key saw its tasks in order,
+     * on a single thread.
+     *
+     * @throws InterruptedException if interrupted while waiting for the tasks
+     */
+    private static void checkLaneOrder() throws InterruptedException {
+        StripedExecutor executor = new StripedExecutor("lane-test", 4);
+        Map<Integer, List<Integer>> seen = new HashMap<>();
+        Map<Integer, List<Thread>> threads = new HashMap<>();
+        for (int key = 0; key < KEYS; key++) {
+            seen.put(key, Collections.synchronizedList(new ArrayList<>()));
+            threads.put(key, Collections.synchronizedList(new ArrayList<>()));
+        }
+
+        CountDownLatch done = new CountDownLatch(KEYS * TASKS_PER_KEY);
+        for (int i = 0; i < TASKS_PER_KEY; i++) {
+            for (int key = 0; key < KEYS; key++) {
+                int task = i;
+                List<Integer> order = seen.get(key);
+                List<Thread> runners = threads.get(key);
+                executor.lane(key).execute(() -> {
+                    order.add(task);
+                    if (runners.isEmpty() || runners.get(runners.size() - 1) != Thread.currentThread())
+                        runners.add(Thread.currentThread());
+                    done.countDown();
+                });
+            }
+        }
+        Checks.check(done.await(30, TimeUnit.SECONDS), "every task submitted to the lanes ran");
+
+        boolean ordered = true;
+        boolean oneThread = true;
+        for (int key = 0; key < KEYS; key++) {
+            List<Integer> order = seen.get(key);
+            for (int i = 0; i < order.size(); i++)
+                ordered &= order.get(i) == i;
+            ordered &= order.size() == TASKS_PER_KEY;
+            oneThread &= threads.get(key).size() == 1;
+        }
+        Checks.check(ordered, "the tasks of each key ran in submission order");
+        Checks.check(oneThread, "the tasks of each key ran on one thread");
+        Checks.check(executor.lane(3).isIdle(), "a lane is idle once its tasks are done");
+        executor.shutdown();
+    }
+
+    /**
+     * Dispatch messages from several peers, alternating a slow handler on the lanes with an inline
+     * one, and check the inline handler never overtakes an earlier message of the same peer.
+     *
+     * @throws InterruptedException if interrupted while waiting for the handlers
+     */
+    private static void checkDispatchOrder() throws InterruptedException {
+        String[] peers = {"10.0.0.1", "10.0.0.2", "10.0.0.3", "10.0.0.4"};
+        int messages = 2000;
+        Map<String, List<Integer>> seen = new HashMap<>();
+        for (String peer : peers)
+            seen.put(peer, Collections.synchronizedList(new ArrayList<>()));
+
+        CountDownLatch done = new CountDownLatch(peers.length * messages);
+        MessageHandler record = msg -> {
+            seen.get(msg.getSrcIP()).add(Integer.parseInt(msg.getData()));
+            done.countDown();
+        };
+        MessageProcessor.register(Message.CHAT, msg -> {
+            if (Integer.parseInt(msg.getData()) % 100 == 0)
+                Thread.sleep(1);
+            record.handle(msg);
+        });
+        MessageProcessor.register(Message.CHAT_PRIV, MessageHandler.inline(record));
+
+        StripedExecutor executor = new StripedExecutor("dispatch-test", 2);
+        for (int i = 0; i < messages; i++) {
+            for (String peer : peers) {
+                // a run of queued messages, then inline ones that would overtake them if run right away
+                String header = i % 10 < 3 ? Message.CHAT : Message.CHAT_PRIV;
+                MessageProcessor.dispatch(new Message(header, String.valueOf(i), peer), executor);
+            }
+        }
+        Checks.check(done.await(30, TimeUnit.SECONDS), "every dispatched message was handled");
+
+        boolean ordered = true;
+        for (String peer : peers) {
+            List<Integer> order = seen.get(peer);
+            ordered &= order.size() == messages;
+            for (int i = 0; i < order.size(); i++)
+                ordered &= order.get(i) == i;
+        }
+        Checks.check(ordered, "inline and queued messages of each peer were handled in arrival order");
+        executor.shutdown();
+    }
+}
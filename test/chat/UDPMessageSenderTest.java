@@ -0,0 +1,138 @@
+package chat;
+
+import protocol.Message;
+import protocol.MessageCodec;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that peers keep their socket address, and that {@link UDPMessageSender} sends a message
+ * to a list of peers as the same bytes to each of them, binary frames to the peers that read them
+ * and text to the others.
+ * The peers are sockets on loopback addresses.
+ *
+ * @author Khoa Le
+ * @version 1.0
+ */
+public class UDPMessageSenderTest {
+
+    private static final int PORT = 4593;
+    private static final int PEERS = 6;
+
+    public static void main(String[] args) throws Exception {
+        run();
+        Checks.exit();
+    }
+
+    /**
+     * Run every check of this class.
+     *
+     * @throws Exception    if a check cannot run
+     */
+    static void run() throws Exception {
+        checkSocketAddress();
+
+        List<Peer> peers = new ArrayList<>();
+        List<DatagramSocket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < PEERS; i++) {
+                Peer peer = new Peer("127.0.1." + (i + 1), PORT);
+                // every other peer reads binary frames
+                if (i % 2 == 0)
+                    peer.setFeatures(Features.BINARY);
+                sockets.add(new DatagramSocket(peer.getSocketAddress()));
+                peers.add(peer);
+            }
+            checkFanOut(peers, sockets);
+        } finally {
+            for (DatagramSocket socket : sockets)
+                socket.close();
+        }
+    }
+
+    /**
+     * Check a peer builds its socket address once, and the same one from either form of its address.
+     */
+    private static void checkSocketAddress() {
+        Peer peer = new Peer("192.168.1.20", PORT);
+        Checks.checkEquals(new InetSocketAddress("192.168.1.20", PORT), peer.getSocketAddress(),
+                "the socket address of a peer is its address and port");
+        Checks.check(peer.getSocketAddress() == peer.getSocketAddress(), "the socket address of a peer is kept");
+        Checks.checkEquals(peer.getSocketAddress(), new Peer(IPv4.pack("192.168.1.20"), PORT).getSocketAddress(),
+                "a peer made from a packed address has the same socket address");
+    }
+
+    /**
+     * Send messages to all the peers at once and check each of them got every message in its format,
+     * in order, with the same bytes as the other peers of that format.
+     */
+    private static void checkFanOut(List<Peer> peers, List<DatagramSocket> sockets) throws IOException {
+        String[] messages = {"hello everyone", "café 中文", ""};
+        for (String data : messages)
+            UDPMessageSender.getInstance().send(peers, new Message(Message.CHAT, data));
+
+        List<List<byte[]>> received = new ArrayList<>();
+        boolean complete = true;
+        boolean formats = true;
+        for (int i = 0; i < PEERS; i++) {
+            boolean binary = i % 2 == 0;
+            List<byte[]> frames = receive(sockets.get(i), binary);
+            List<String> data = new ArrayList<>();
+            for (byte[] frame : frames) {
+                Message msg = binary ? MessageCodec.decode(ByteBuffer.wrap(frame))
+                        : Message.parse(new String(frame, StandardCharsets.UTF_8)).orElse(null);
+                formats &= msg != null && msg.getHeader().equals(Message.CHAT);
+                data.add(msg == null ? null : msg.getData());
+            }
+            complete &= data.equals(Arrays.asList(messages));
+            received.add(frames);
+        }
+        Checks.check(formats, "binary peers got frames and the others got text");
+        Checks.check(complete, "every peer got every message once, in order");
+
+        boolean same = true;
+        for (int i = 2; i < PEERS; i++)
+            for (int j = 0; j < messages.length && j < received.get(i).size(); j++)
+                same &= Arrays.equals(received.get(i - 2).get(j), received.get(i).get(j));
+        Checks.check(same, "the peers of a format got the same bytes");
+    }
+
+    /**
+     * Receive the messages sent to a peer until none comes for a while.
+     * Frames packed together into a batch are unpacked.
+     *
+     * @param socket    the socket of the peer
+     * @param binary    whether the peer reads binary frames
+     * @return          the messages, as frames or as text
+     */
+    private static List<byte[]> receive(DatagramSocket socket, boolean binary) throws IOException {
+        List<byte[]> messages = new ArrayList<>();
+        byte[] buffer = new byte[2048];
+        socket.setSoTimeout(500);
+        while (true) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                return messages;
+            }
+            ByteBuffer datagram = ByteBuffer.wrap(buffer, 0, packet.getLength());
+            List<ByteBuffer> frames = binary && MessageCodec.opcodeOf(datagram) == MessageCodec.BATCH
+                    ? Coalescer.unpack(datagram) : Arrays.asList(datagram);
+            for (ByteBuffer frame : frames) {
+                byte[] bytes = new byte[frame.remaining()];
+                frame.get(bytes);
+                messages.add(bytes);
+            }
+        }
+    }
+}